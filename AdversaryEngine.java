@@ -0,0 +1,254 @@
+// AdversaryEngine.java
+
+package tetris;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ Picks the nastiest next piece for a board -- the one the player can
+ do least well with. Each piece is rated by the score of a brain's
+ best play of it: higher is worse for the player, and a piece that
+ can't be played at all rates LOSS_SCORE.
+
+ <p>
+ Looking two ahead, a piece is instead rated by what happens after the
+ player's best play of it, if the adversary then deals the worst piece
+ for that board -- so it can pick a piece that is harmless now but sets
+ up a nasty follow-up.
+
+ <p>
+ The pieces are rated in parallel, each on its own copy of the board
+ with its own brain, and the ratings are cached in a TranspositionTable
+ keyed by the board hash. A board that comes up again -- e.g. the one
+ the player's brain then actually plays into, already rated by the
+ two ahead search -- costs a table lookup per piece.
+
+ <p>
+ worstPieceAsync() starts the rating and returns at once, so a caller
+ that mustn't wait -- e.g. the Swing event thread -- can start it as
+ soon as it knows the board, and take the pick later if it is done.
+*/
+public class AdversaryEngine {
+
+    /**
+     The rating of a piece that can't be played at all.
+    */
+    public static final double LOSS_SCORE = ExpectimaxBrain.LOSS_SCORE;
+
+    public static final int DEFAULT_TABLE_BITS = 14;
+
+    private final Piece[] pieces;
+    private final ExecutorService pool;
+    private final TranspositionTable table;
+    private final ThreadLocal<Brain> brains;
+    private volatile boolean twoAhead;
+
+
+    /**
+     Creates an adversary over the 7 standard pieces that rates them with
+     DefaultBrain on the common ForkJoinPool, looking one piece ahead.
+    */
+    public AdversaryEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+
+
+    /**
+     Creates an adversary over the 7 standard pieces that rates them with
+     DefaultBrain on the given pool, looking one piece ahead.
+    */
+    public AdversaryEngine(ExecutorService pool) {
+        this(Piece.getPieces(), new BrainSimulator.BrainFactory() {
+            public Brain newBrain() {
+                return new DefaultBrain();
+            }
+        }, pool, new TranspositionTable(DEFAULT_TABLE_BITS));
+    }
+
+
+    /**
+     Creates an adversary over the given root pieces, rating them with
+     brains from the factory -- one per pool thread -- on the given pool,
+     caching in the given table.
+    */
+    public AdversaryEngine(Piece[] pieces, final BrainSimulator.BrainFactory factory,
+            ExecutorService pool, TranspositionTable table) {
+        this.pieces = pieces.clone();
+        this.pool = pool;
+        this.table = table;
+        brains = new ThreadLocal<Brain>() {
+            protected Brain initialValue() {
+                return factory.newBrain();
+            }
+        };
+    }
+
+
+    /**
+     Sets whether pieces are rated two ahead. Safe to call from any thread.
+    */
+    public void setTwoAhead(boolean twoAhead) {
+        this.twoAhead = twoAhead;
+    }
+
+
+    public boolean isTwoAhead() {
+        return twoAhead;
+    }
+
+
+    /**
+     Returns the root piece with the highest rating on the board --
+     the first one, on a tie. The board should be committed, and
+     is not changed. Waits for the rating; see worstPieceAsync().
+    */
+    public Piece worstPiece(Board board, int limitHeight) {
+        return worst(rate(board, limitHeight));
+    }
+
+
+    /**
+     Starts rating the pieces on the board, and returns at once with a
+     future for the worstPiece(). The board is copied before this
+     returns, so the caller may change it afterwards.
+    */
+    public CompletableFuture<Piece> worstPieceAsync(Board board, int limitHeight) {
+        return rateAsync(board, limitHeight).thenApply(new Function<double[], Piece>() {
+            public Piece apply(double[] ratings) {
+                return worst(ratings);
+            }
+        });
+    }
+
+
+    private Piece worst(double[] ratings) {
+        int worst = 0;
+        for (int i = 1; i<ratings.length; i++) {
+            if (ratings[i] > ratings[worst]) worst = i;
+        }
+        return pieces[worst];
+    }
+
+
+    /**
+     Returns the rating of each root piece on the board, in the order
+     of the pieces. The board should be committed, and is not changed.
+     Waits for the rating; see rateAsync().
+    */
+    public double[] rate(Board board, int limitHeight) {
+        try {
+            return rateAsync(board, limitHeight).join();
+        }
+        catch (CompletionException e) {
+            throw new RuntimeException("adversary failed", e.getCause());
+        }
+    }
+
+
+    /**
+     Starts rating each root piece on the board, and returns at once
+     with a future for the ratings, in the order of the pieces. The
+     board should be committed; it is copied before this returns, so
+     the caller may change it afterwards.
+    */
+    public CompletableFuture<double[]> rateAsync(Board board, final int limitHeight) {
+        final int plies = (twoAhead ? 2 : 1);
+        final double[] ratings = new double[pieces.length];
+
+        // rate the pieces not in the table in parallel
+        List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i<pieces.length; i++) {
+            long entry = table.probe(key(board.getHash(), i, plies, limitHeight));
+            if (entry!=TranspositionTable.MISS && TranspositionTable.depth(entry)==plies) {
+                ratings[i] = TranspositionTable.score(entry);
+                continue;
+            }
+
+            final int index = i;
+            final Board copy = new Board(board);
+            tasks.add(CompletableFuture.supplyAsync(new Supplier<Double>() {
+                public Double get() {
+                    return rateOnThread(copy, index, plies, limitHeight);
+                }
+            }, pool).thenAccept(new Consumer<Double>() {
+                public void accept(Double rating) {
+                    ratings[index] = rating;
+                }
+            }));
+        }
+
+        // the ratings are complete, and visible, once every task is
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()]))
+                .thenApply(new Function<Void, double[]>() {
+                    public double[] apply(Void done) {
+                        return ratings;
+                    }
+                });
+    }
+
+
+    /*
+     * Rates piece i on the board, which belongs to this thread, searching
+     * plies pieces ahead, and caches the result. The rating is rounded to
+     * float precision, as the table stores it, so a fresh rating and a
+     * cached one compare the same way.
+     */
+    private double rateOnThread(Board board, int i, int plies, int limitHeight) {
+        long hash = board.getHash();    // before the two ahead search changes the board
+        Brain brain = brains.get();
+        Brain.Move move = brain.bestMove(board, pieces[i], limitHeight, null);
+
+        double rating;
+        if (move==null) {
+            rating = LOSS_SCORE;
+        }
+        else if (plies==1) {
+            rating = move.score;
+        }
+        else {
+            // play the player's best move, then deal the worst follow-up
+            board.commit();
+            int result = board.place(move.piece, move.x, move.y);
+            if (result==Board.PLACE_ROW_FILLED) board.clearRows();
+            board.commit();
+
+            rating = Double.NEGATIVE_INFINITY;
+            for (int next = 0; next<pieces.length; next++) {
+                rating = Math.max(rating, rateCached(board, next, limitHeight));
+            }
+        }
+
+        rating = (float)rating;
+        table.store(key(hash, i, plies, limitHeight), rating, plies, 0);
+        return rating;
+    }
+
+
+    /*
+     * The one ahead rating of piece i, from the table if it's there.
+     */
+    private double rateCached(Board board, int i, int limitHeight) {
+        long entry = table.probe(key(board.getHash(), i, 1, limitHeight));
+        if (entry!=TranspositionTable.MISS && TranspositionTable.depth(entry)==1) {
+            return TranspositionTable.score(entry);
+        }
+        return rateOnThread(board, i, 1, limitHeight);
+    }
+
+
+    /*
+     * Mixes the board hash with what else the rating depends on.
+     */
+    private static long key(long hash, int piece, int plies, int limitHeight) {
+        long mix = ((long)piece << 40) ^ ((long)plies << 32) ^ limitHeight;
+        return hash ^ ((mix + 1) * 0x9E3779B97F4A7C15L);
+    }
+}
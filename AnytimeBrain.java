@@ -0,0 +1,131 @@
+// AnytimeBrain.java
+
+package tetris;
+
+/**
+ An ExpectimaxBrain that searches as deep as a time budget allows.
+ bestMove() searches 1 play deep (what DefaultBrain does), then 2,
+ then 3 ... up to the maximum depth, and stops when the budget runs
+ out, returning the move from the deepest search that finished.
+ The 1 play search always finishes, so there is always a move.
+ getDepthReached() tells how deep the last one got.
+
+ <p>
+ Each search looks at one more play of every piece than the one
+ before, so it costs a couple of hundred times as much, and the
+ shallower searches add little to the cost of the deepest one.
+ They don't save it any work, though: an expected score in the table
+ is only used at the depth it was searched to.
+
+ <p>
+ The budget is not a hard limit. The search looks at the clock every
+ 256 boards -- a fraction of a millisecond on the standard board --
+ and unwinds quickly once it is out of time, but a thread that is
+ kept waiting for the CPU, on a busy or single core machine, can
+ still run several milliseconds over. The budget may be changed from
+ another thread while a search runs -- JBrainTetris ties it to the
+ speed slider, so the brain thinks longer when the game is slower.
+*/
+public class AnytimeBrain extends ExpectimaxBrain {
+
+    public static final int DEFAULT_MAX_DEPTH = 4;
+    public static final long DEFAULT_BUDGET_MILLIS = 50;
+
+    private final int maxDepth;
+    private volatile long budgetNanos;
+
+    // for the last bestMove()
+    private int depthReached;
+
+
+    /**
+     Creates a brain over the 7 standard pieces with the
+     default maximum depth and time budget.
+    */
+    public AnytimeBrain() {
+        this(DEFAULT_MAX_DEPTH, DEFAULT_BUDGET_MILLIS, Piece.getPieces(), new TranspositionTable(DEFAULT_TABLE_BITS));
+    }
+
+
+    /**
+     Creates a brain that searches at most maxDepth plays ahead,
+     for at most budgetMillis per move.
+    */
+    public AnytimeBrain(int maxDepth, long budgetMillis, Piece[] pieces, TranspositionTable table) {
+        super(maxDepth, pieces, table);
+        this.maxDepth = maxDepth;
+        setTimeBudget(budgetMillis);
+    }
+
+
+    /**
+     Sets the time bestMove() may take. Safe to call from any thread;
+     takes effect at the next bestMove().
+    */
+    public void setTimeBudget(long millis) {
+        if (millis<0) throw new RuntimeException("Bad time budget " + millis);
+        budgetNanos = millis * 1000000L;
+    }
+
+
+    public long getTimeBudget() {
+        return budgetNanos / 1000000L;
+    }
+
+
+    /**
+     Returns how many plays deep the last bestMove() searched.
+    */
+    public int getDepthReached() {
+        return depthReached;
+    }
+
+
+    /**
+     Returns the best move found within the time budget,
+     or null if no play is possible.
+     See the Brain interface for the other details.
+    */
+    @Override
+    public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+        return bestMove(board, piece, limitHeight, System.nanoTime() + budgetNanos, move);
+    }
+
+
+    /**
+     Same as bestMove(), but searches until the given System.nanoTime()
+     instead of for the time budget.
+    */
+    public Brain.Move bestMove(Board board, Piece piece, int limitHeight, long deadline, Brain.Move move) {
+        board.commit();
+        Board work = new Board(board, maxDepth);
+
+        // the 1 play search is quick and always finishes
+        startSearch(0);
+        Brain.Move best = searchMove(work, piece, 1, limitHeight, move);
+        depthReached = 1;
+        if (best==null) return null;
+
+        Brain.Move deeper = new Brain.Move();
+        for (int plies = 2; plies<=maxDepth && System.nanoTime()-deadline < 0; plies++) {
+            startSearch(deadline);
+            Brain.Move found = searchMove(work, piece, plies, limitHeight, deeper);
+            if (isTimedOut() || found==null) break;
+
+            // keep this one, and reuse the old one for the next search
+            deeper = best;
+            best = found;
+            depthReached = plies;
+        }
+
+        // hand back the caller's move object, if there was one
+        if (move!=null && best!=move) {
+            move.x = best.x;
+            move.y = best.y;
+            move.piece = best.piece;
+            move.score = best.score;
+            best = move;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,198 @@
+// BeamSearchBrain.java
+
+package tetris;
+
+import java.util.*;
+
+/**
+ A brain that looks ahead at the upcoming pieces.
+ Given the current piece and a preview of the pieces after it,
+ bestMove() runs a beam search: it rates every play of the current
+ piece with rateBoard(), keeps the best beamWidth boards, tries every
+ play of the next preview piece on each of those, keeps the best
+ beamWidth again, and so on for up to depth pieces. It returns the
+ play of the current piece that leads to the best board at the end.
+ 
+ <p>
+ With no preview, or a depth of 1, this picks the same move as
+ DefaultBrain. Like DefaultBrain, subclasses change the evaluation
+ by overriding rateBoard().
+ 
+ Typical client code looks like...
+ <pre>
+ BeamSearchBrain brain = new BeamSearchBrain(8, 2);
+ brain.setPreview(new Piece[] { nextPiece });
+ Brain.Move move = brain.bestMove(board, piece, limitHeight, null);
+ </pre>
+*/
+/*
+ Implementation: the search runs on one copy of the board with an undo
+ stack as deep as the search. To expand a beam node, its path of plays is
+ replayed from the root with place()/clearRows(), each child is rated
+ with rateMove(), and the path is undone -- so no board is ever copied
+ per node.
+*/
+public class BeamSearchBrain extends DefaultBrain {
+    
+    public static final int DEFAULT_BEAM_WIDTH = 8;
+    public static final int DEFAULT_DEPTH = 2;
+    
+    private final int beamWidth;
+    private final int depth;
+    private Piece[] preview = new Piece[0];
+    
+    
+    /**
+     Creates a brain with the default beam width and depth.
+    */
+    public BeamSearchBrain() {
+        this(DEFAULT_BEAM_WIDTH, DEFAULT_DEPTH);
+    }
+    
+    
+    /**
+     Creates a brain that keeps beamWidth boards per level and
+     looks at up to depth pieces, counting the current one.
+    */
+    public BeamSearchBrain(int beamWidth, int depth) {
+        if (beamWidth<1 || depth<1) throw new RuntimeException("Bad beam width " + beamWidth + " or depth " + depth);
+        this.beamWidth = beamWidth;
+        this.depth = depth;
+    }
+    
+    
+    public int getBeamWidth() {
+        return beamWidth;
+    }
+    
+    
+    public int getDepth() {
+        return depth;
+    }
+    
+    
+    /**
+     Sets the upcoming pieces, in the order they will arrive,
+     for the 4 argument bestMove() to use. The array is copied.
+    */
+    public void setPreview(Piece[] preview) {
+        this.preview = preview.clone();
+    }
+    
+    
+    /**
+     Same as bestMove(board, piece, preview, limitHeight, move)
+     with the preview from setPreview().
+    */
+    public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+        return bestMove(board, piece, preview, limitHeight, move);
+    }
+    
+    
+    /**
+     Given a piece, the pieces that will follow it, and a board,
+     returns a move object for the play of the piece that leads to
+     the best board after up to depth pieces, or null if the piece
+     can't be played. See the Brain interface for the other details.
+    */
+    public Brain.Move bestMove(Board board, Piece piece, Piece[] preview, int limitHeight, Brain.Move move) {
+        int levels = Math.min(depth, 1 + preview.length);
+        board.commit();
+        Board work = new Board(board, levels);
+        
+        List<Node> beam = expand(work, null, piece, limitHeight);
+        for (int level = 1; level<levels && !beam.isEmpty(); level++) {
+            List<Node> next = expand(work, beam, preview[level-1], limitHeight);
+            if (next.isEmpty()) break;    // nothing fits -- go with the boards we have
+            beam = next;
+        }
+        
+        if (beam.isEmpty()) return(null);    // could not find a play at all!
+        
+        // the beam is sorted, so the best board is first -- walk back to its first play
+        Node best = beam.get(0);
+        Node first = best;
+        while (first.parent!=null) first = first.parent;
+        
+        if (move==null) move = new Brain.Move();
+        move.piece = first.piece;
+        move.x = first.x;
+        move.y = first.y;
+        move.score = best.score;
+        return(move);
+    }
+    
+    
+    // One board in the beam: the play that made it, and the board it was made from.
+    private static class Node {
+        Node parent;
+        Piece piece;
+        int x;
+        int y;
+        double score;
+        int order;    // generation order, to break ties the way DefaultBrain does
+    }
+    
+    
+    private static final Comparator<Node> BY_SCORE = new Comparator<Node>() {
+        public int compare(Node a, Node b) {
+            if (a.score!=b.score) return (a.score<b.score) ? -1 : 1;
+            return a.order - b.order;
+        }
+    };
+    
+    
+    /*
+     Rates every play of the piece on every board in the beam (or on the
+     root board when beam is null) and returns the best beamWidth of them,
+     best first.
+    */
+    private List<Node> expand(Board work, List<Node> beam, Piece piece, int limitHeight) {
+        List<Node> children = new ArrayList<Node>();
+        int parents = (beam==null) ? 1 : beam.size();
+        
+        for (int p = 0; p<parents; p++) {
+            Node parent = (beam==null) ? null : beam.get(p);
+            int played = replay(work, parent);
+            
+            Piece current = piece;
+            do {
+                final int xBound = work.getWidth() - current.getWidth()+1;
+                for (int x = 0; x<xBound; x++) {
+                    double score = rateMove(work, current, x, limitHeight);
+                    if (score==Double.POSITIVE_INFINITY) continue;
+                    
+                    Node child = new Node();
+                    child.parent = parent;
+                    child.piece = current;
+                    child.x = x;
+                    child.y = work.dropHeight(current, x);
+                    child.score = score;
+                    child.order = children.size();
+                    children.add(child);
+                }
+                current = current.fastRotation();
+            } while (current!=piece);
+            
+            for (int i = 0; i<played; i++) work.undo();
+        }
+        
+        Collections.sort(children, BY_SCORE);
+        if (children.size()>beamWidth) children.subList(beamWidth, children.size()).clear();
+        return children;
+    }
+    
+    
+    /*
+     Plays the path from the root down to node onto the work board,
+     and returns how many plays that took.
+    */
+    private int replay(Board work, Node node) {
+        if (node==null) return 0;
+        int played = replay(work, node.parent);
+        
+        int result = work.place(node.piece, node.x, node.y);
+        if (result == Board.PLACE_ROW_FILLED) work.clearRows();
+        return played + 1;
+    }
+}
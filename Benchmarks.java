@@ -0,0 +1,424 @@
+// Benchmarks.java
+package tetris;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ Micro-benchmarks for the hot paths: Board.place/undo, dropHeight,
+ clearRows, Piece rotation setup, and DefaultBrain.bestMove.
+ The board benchmarks run on a few fixed boards -- empty, mid-game,
+ near the top, full of holes, and one set up for a 4-row clear --
+ at several board sizes. The fixtures are built from fixed seeds,
+ so every run measures the same boards.
+
+ <p>
+ Each benchmark is warmed up, then timed over several iterations,
+ and reported as the average ns per operation. Results print as they
+ come in and are written as JSON in the same shape JMH uses
+ (benchmark, params, primaryMetric with score, scoreError and
+ rawData), so runs can be saved and compared over time.
+ From the command line:
+ <pre>
+ java tetris.Benchmarks [-w warmups] [-i iterations] [-t ms per iteration] [-o results.json] [name filter]
+ </pre>
+ e.g. "java tetris.Benchmarks -o before.json place" runs just the
+ benchmarks with "place" in their names.
+*/
+/*
+ Implementation notes:
+ -Every operation leaves the board as it found it (place is always
+ undone), so an iteration can run any number of operations.
+ -Results are summed into a sink the JIT can't see through,
+ so it can't drop the work as dead code.
+ -Board sanity checks are turned off on the fixtures -- they'd
+ measure the checker, not the board.
+*/
+public class Benchmarks {
+
+	public static final int DEFAULT_WARMUPS = 3;
+	public static final int DEFAULT_ITERATIONS = 5;
+	public static final int DEFAULT_ITERATION_MILLIS = 500;
+
+	// board sizes, not counting the TOP_SPACE rows
+	private static final int[][] SIZES = { {10, 20}, {20, 40}, {Board.MAX_WIDTH, 64} };
+
+	private static final String[] FIXTURES = { "empty", "midGame", "nearTop", "manyHoles", "fourLineClear" };
+
+	// where results go so the JIT can't skip computing them
+	static volatile long sink;
+
+	/*
+	 * One benchmark: runs its operation ops times.
+	 */
+	private static abstract class Bench {
+		final String name;
+		final String fixture;	// null for the piece benchmarks
+		final int width;
+		final int height;
+
+		Bench(String name, String fixture, int width, int height) {
+			this.name = name;
+			this.fixture = fixture;
+			this.width = width;
+			this.height = height;
+		}
+
+		// returns something computed from the results, for the sink
+		abstract long run(int ops);
+	}
+
+	private int warmups = DEFAULT_WARMUPS;
+	private int iterations = DEFAULT_ITERATIONS;
+	private int iterationMillis = DEFAULT_ITERATION_MILLIS;
+
+
+	/*
+	 * The plays -- piece, x, landing y -- that fit on the board
+	 * without sticking up past limitHeight, over all rotations of all pieces.
+	 */
+	private static class Play {
+		final Piece piece;
+		final int x;
+		final int y;
+
+		Play(Piece piece, int x, int y) {
+			this.piece = piece;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	private static Play[] plays(Board board, int limitHeight) {
+		List<Play> plays = new ArrayList<Play>();
+		for (Piece root : Piece.getPieces()) {
+			Piece piece = root;
+			do {
+				for (int x = 0; x + piece.getWidth() <= board.getWidth(); x++) {
+					int y = board.dropHeight(piece, x);
+					if (y + piece.getHeight() <= limitHeight) plays.add(new Play(piece, x, y));
+				}
+				piece = piece.fastRotation();
+			} while (piece != root);
+		}
+		return plays.toArray(new Play[plays.size()]);
+	}
+
+
+	/**
+	 Builds the named fixture on a width x height board, plus TOP_SPACE rows.
+	 No row of a fixture is full.
+	*/
+	public static Board fixture(String name, int width, int height) {
+		boolean[][] grid = new boolean[width][height];
+		Random random = new Random(name.hashCode() * 31L + width * 1000 + height);
+
+		if (name.equals("empty")) {
+			// nothing to add
+		}
+		else if (name.equals("midGame")) {
+			// a ragged stack about 40% of the way up, with the odd hole
+			fillColumns(grid, random, height * 2 / 5, height / 8, 0.05);
+		}
+		else if (name.equals("nearTop")) {
+			// a ragged stack just short of the limit
+			fillColumns(grid, random, height - 4, 2, 0.05);
+		}
+		else if (name.equals("manyHoles")) {
+			// a mid-height stack riddled with holes
+			fillColumns(grid, random, height / 2, height / 8, 0.35);
+		}
+		else if (name.equals("fourLineClear")) {
+			// 4 rows full but for the rightmost column,
+			// with a ragged mid-game stack on top
+			for (int x = 0; x < width - 1; x++) {
+				int top = 4 + random.nextInt(height / 4);
+				for (int y = 0; y < top; y++) grid[x][y] = true;
+			}
+		}
+		else {
+			throw new RuntimeException("No fixture " + name);
+		}
+
+		// open one cell in every full row
+		for (int y = 0; y < height; y++) {
+			boolean full = true;
+			for (int x = 0; x < width; x++) full &= grid[x][y];
+			if (full) grid[random.nextInt(width)][y] = false;
+		}
+
+		Board board = new Board(width, height + TetrisEngine.TOP_SPACE);
+		board.setCheckMode(Board.CHECK_OFF, 1);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				if (grid[x][y]) {
+					board.place(BLOCK, x, y);
+					board.commit();
+				}
+			}
+		}
+		return board;
+	}
+
+	private static final Piece BLOCK = new Piece("0 0");
+
+	/*
+	 * Fills each column up to about the given height, give or take
+	 * spread, leaving each cell empty with the given chance.
+	 */
+	private static void fillColumns(boolean[][] grid, Random random, int height, int spread, double holeChance) {
+		for (int x = 0; x < grid.length; x++) {
+			int top = height + (spread > 0 ? random.nextInt(2 * spread + 1) - spread : 0);
+			for (int y = 0; y < top; y++) {
+				grid[x][y] = (random.nextDouble() >= holeChance);
+			}
+		}
+	}
+
+
+	/*
+	 * Makes every benchmark, in the order they run.
+	 */
+	private static List<Bench> benchmarks() {
+		List<Bench> benches = new ArrayList<Bench>();
+
+		for (int[] size : SIZES) {
+			for (String name : FIXTURES) {
+				addBoardBenchmarks(benches, name, size[0], size[1]);
+			}
+		}
+
+		// piece rotation setup, which doesn't depend on a board
+		final Piece[] roots = Piece.getPieces();
+		final List<Piece> all = new ArrayList<Piece>();
+		for (Piece root : roots) {
+			Piece piece = root;
+			do {
+				all.add(piece);
+				piece = piece.fastRotation();
+			} while (piece != root);
+		}
+		benches.add(new Bench("computeNextRotation", null, 0, 0) {
+			long run(int ops) {
+				long sum = 0;
+				for (int i = 0; i < ops; i++) {
+					sum += all.get(i % all.size()).computeNextRotation().getWidth();
+				}
+				return sum;
+			}
+		});
+
+		final String[] bodies = { Piece.STICK_STR, Piece.L1_STR, Piece.L2_STR, Piece.S1_STR,
+				Piece.S2_STR, Piece.SQUARE_STR, Piece.PYRAMID_STR };
+		benches.add(new Bench("makeFastRotations", null, 0, 0) {
+			long run(int ops) {
+				long sum = 0;
+				for (int i = 0; i < ops; i++) {
+					sum += Piece.makeFastRotations(new Piece(bodies[i % bodies.length])).getId();
+				}
+				return sum;
+			}
+		});
+
+		return benches;
+	}
+
+
+	private static void addBoardBenchmarks(List<Bench> benches, String name, int width, int height) {
+		final Board board = fixture(name, width, height);
+		final Play[] plays = plays(board, height);
+		final Piece[] roots = Piece.getPieces();
+
+		// the 4-row clear benchmark uses the one play that clears them
+		final Play[] clearPlays = (name.equals("fourLineClear")
+				? new Play[] { new Play(roots[Piece.STICK], width - 1, 0) }
+				: plays);
+
+		benches.add(new Bench("placeUndo", name, width, height) {
+			long run(int ops) {
+				long sum = 0;
+				for (int i = 0; i < ops; i++) {
+					Play play = plays[i % plays.length];
+					sum += board.place(play.piece, play.x, play.y);
+					board.undo();
+				}
+				return sum;
+			}
+		});
+
+		benches.add(new Bench("dropHeight", name, width, height) {
+			long run(int ops) {
+				long sum = 0;
+				for (int i = 0; i < ops; i++) {
+					Play play = plays[i % plays.length];
+					sum += board.dropHeight(play.piece, play.x);
+				}
+				return sum;
+			}
+		});
+
+		benches.add(new Bench("clearRows", name, width, height) {
+			long run(int ops) {
+				long sum = 0;
+				for (int i = 0; i < ops; i++) {
+					Play play = clearPlays[i % clearPlays.length];
+					board.place(play.piece, play.x, play.y);
+					sum += board.clearRows();
+					board.undo();
+				}
+				return sum;
+			}
+		});
+
+		final DefaultBrain brain = new DefaultBrain();
+		final Brain.Move move = new Brain.Move();
+		benches.add(new Bench("bestMove", name, width, height) {
+			long run(int ops) {
+				long sum = 0;
+				for (int i = 0; i < ops; i++) {
+					Brain.Move best = brain.bestMove(board, roots[i % roots.length], height, move);
+					if (best != null) sum += best.x;
+				}
+				return sum;
+			}
+		});
+	}
+
+
+	/*
+	 * Runs the benchmark for about iterationMillis, and returns the average ns per op.
+	 */
+	private double iteration(Bench bench) {
+		long limit = iterationMillis * 1000000L;
+		long ops = 0;
+		long elapsed = 0;
+		long sum = 0;
+		int batch = 1;
+		while (elapsed < limit) {
+			long start = System.nanoTime();
+			sum += bench.run(batch);
+			elapsed += System.nanoTime() - start;
+			ops += batch;
+			if (batch < (1 << 20)) batch *= 2;
+		}
+		sink += sum;
+		return ((double)elapsed) / ops;
+	}
+
+
+	/*
+	 * Warms up and measures one benchmark, and returns its raw
+	 * ns per op for each measured iteration.
+	 */
+	private double[] measure(Bench bench) {
+		for (int i = 0; i < warmups; i++) iteration(bench);
+		double[] raw = new double[iterations];
+		for (int i = 0; i < iterations; i++) raw[i] = iteration(bench);
+		return raw;
+	}
+
+
+	private static String fullName(Bench bench) {
+		if (bench.fixture == null) return bench.name;
+		return bench.name + ":" + bench.fixture + ":" + bench.width + "x" + bench.height;
+	}
+
+
+	/**
+	 Runs every benchmark whose full name -- e.g. "placeUndo:midGame:10x20" --
+	 contains the filter, or all of them for a null filter. Prints each
+	 result as it finishes, and writes them all as JSON to out, if not null.
+	*/
+	public void run(String filter, Writer out) throws IOException {
+		List<String> json = new ArrayList<String>();
+		for (Bench bench : benchmarks()) {
+			String name = fullName(bench);
+			if (filter != null && name.indexOf(filter) < 0) continue;
+
+			double[] raw = measure(bench);
+			double mean = 0;
+			for (double r : raw) mean += r;
+			mean /= raw.length;
+			double squares = 0;
+			for (double r : raw) squares += (r - mean) * (r - mean);
+			double stddev = (raw.length > 1 ? Math.sqrt(squares / (raw.length - 1)) : 0);
+			// about a 99.9% confidence interval, as JMH reports
+			double error = 3.29 * stddev / Math.sqrt(raw.length);
+
+			System.out.println(String.format(Locale.ROOT, "%-40s %12.1f +- %8.1f ns/op", name, mean, error));
+			json.add(toJson(bench, mean, error, raw));
+		}
+
+		if (out != null) {
+			out.write("[\n");
+			for (int i = 0; i < json.size(); i++) {
+				out.write(json.get(i));
+				out.write(i < json.size() - 1 ? ",\n" : "\n");
+			}
+			out.write("]\n");
+			out.flush();
+		}
+	}
+
+
+	private String toJson(Bench bench, double mean, double error, double[] raw) {
+		StringBuilder buff = new StringBuilder();
+		buff.append("  {\n");
+		buff.append("    \"benchmark\": \"tetris.Benchmarks.").append(bench.name).append("\",\n");
+		buff.append("    \"mode\": \"avgt\",\n");
+		buff.append("    \"warmupIterations\": ").append(warmups).append(",\n");
+		buff.append("    \"measurementIterations\": ").append(iterations).append(",\n");
+		buff.append("    \"measurementTime\": \"").append(iterationMillis).append(" ms\",\n");
+		if (bench.fixture != null) {
+			buff.append("    \"params\": { \"fixture\": \"").append(bench.fixture)
+				.append("\", \"width\": \"").append(bench.width)
+				.append("\", \"height\": \"").append(bench.height).append("\" },\n");
+		}
+		buff.append("    \"primaryMetric\": {\n");
+		buff.append(String.format(Locale.ROOT, "      \"score\": %.3f,%n", mean));
+		buff.append(String.format(Locale.ROOT, "      \"scoreError\": %.3f,%n", error));
+		buff.append("      \"scoreUnit\": \"ns/op\",\n");
+		buff.append("      \"rawData\": [ [");
+		for (int i = 0; i < raw.length; i++) {
+			if (i > 0) buff.append(", ");
+			buff.append(String.format(Locale.ROOT, "%.3f", raw[i]));
+		}
+		buff.append("] ]\n");
+		buff.append("    }\n");
+		buff.append("  }");
+		return buff.toString();
+	}
+
+
+	/**
+	 Runs the benchmarks from the command line.
+	*/
+	public static void main(String[] args) throws IOException {
+		Benchmarks benchmarks = new Benchmarks();
+		String filter = null;
+		String outName = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-w")) benchmarks.warmups = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-i")) benchmarks.iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-t")) benchmarks.iterationMillis = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-o")) outName = args[++i];
+			else filter = args[i];
+		}
+
+		Writer out = null;
+		if (outName != null) out = new PrintWriter(new FileWriter(outName));
+		try {
+			benchmarks.run(filter, out);
+		}
+		finally {
+			if (out != null) out.close();
+		}
+	}
+}
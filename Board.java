@@ -1,6 +1,9 @@
 // Board.java
 package tetris;
 
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
 /**
  CS108 Tetris Board.
  Represents a Tetris board -- essentially a 2-d grid
@@ -8,28 +11,91 @@ package tetris;
  Has an "undo" feature that allows clients to add and remove pieces efficiently.
  Does not do any drawing or have any idea of pixels. Instead,
  just represents the abstract 2-d board.
+ 
+ <p>
+ Implementation: the grid is stored as a bitboard -- one long
+ per row, where bit x is set if the block at (x, y) is filled.
+ A row is full when its mask equals the full-row mask, and
+ a piece collides when any of its shifted row masks ANDs
+ with the rows it covers. Boards may be at most 64 blocks wide.
 */
 public class Board	{
 	
+	/**
+	 The widest board supported -- one bit per column in a long.
+	*/
+	public static final int MAX_WIDTH = 64;
+	
 	//width and height of the board
 	private int width;
 	private int height;
 	
-	private boolean[][] grid;
-	private boolean[][] backupGrid;
+	private long[] rows;		//one bit mask per row
+	private long fullRow;		//the mask of a row that is filled all the way across
 	
-	private boolean DEBUG = true;
 	boolean committed;
 	
+	/**
+	 Invariant checking modes for setCheckMode(). CHECK_OFF never checks
+	 the board on its own, CHECK_SAMPLED checks it after one in every
+	 getCheckSampleRate() operations, and CHECK_FULL after every
+	 place(), clearRows() and undo(). A sampled check only counts and
+	 reports what it finds, so a long run can be watched without being
+	 stopped; a full check throws, as sanityCheck() does.
+	*/
+	public static final int CHECK_OFF = 0;
+	public static final int CHECK_SAMPLED = 1;
+	public static final int CHECK_FULL = 2;
+	
+	//the defaults for new boards, from the tetris.board.check ("off", "sampled"
+	//or "full") and tetris.board.checkRate system properties -- off unless
+	//debugging, so normal play and search pay nothing for checking
+	private static final int DEFAULT_CHECK_MODE = parseCheckMode(System.getProperty("tetris.board.check", "off"));
+	private static final int DEFAULT_CHECK_RATE = Integer.getInteger("tetris.board.checkRate", 1000);
+	
+	private int checkMode;
+	private int checkSampleRate;
+	private int checkCountdown;		//operations left until the next sampled check
+	private long checksPerformed;
+	private long checkViolations;
+	
 	private int[] columnHeights;	//the height of each column
-	private int[] rowWidths;	//the width of each row
+	private int[] columnBlocks;		//the number of filled blocks in each column
+	
+	//board features kept up to date as columns change, so evaluators
+	//can read them in O(1) -- see getHoles(), getBumpiness() and friends
+	private int blockCount;			//filled blocks in the whole board
+	private int aggregateHeight;	//sum of the column heights
+	private int bumpiness;			//sum of the height differences of neighboring columns
+	private int wellSum;			//sum of the well depths of all columns
 	
-	//backups to allow board to undo illegal moves
-	private int[] backupHeights;
-	private int[] backupWidths;
+	private long hash;				//Zobrist-style hash of the grid -- see getHash()
 	
 	private int maxHeight;
 	
+	//undo journal -- the old value of every row and column written since the
+	//last commit, in the order they were written. undo() plays it backwards,
+	//so it costs only as much as the place() and clearRows() it reverts.
+	//Each undo level is a place() and its clearRows(); the level arrays hold
+	//where each level starts in the journal, and the scalars it must put back.
+	private int[] journalRowIndexes;
+	private long[] journalRowValues;
+	private int journalRowCount;
+	private int[] journalColumnIndexes;
+	private int[] journalColumnValues;
+	private int[] journalColumnBlocks;
+	private int journalColumnCount;
+	private int undoDepth;			//how many levels may be open at once
+	private int undoLevel;			//how many levels are open -- 0 when committed
+	private int[] levelRowStarts;
+	private int[] levelColumnStarts;
+	private int[] backupMaxHeights;
+	private int[] backupBlockCounts;
+	private int[] backupAggregateHeights;
+	private int[] backupBumpinesses;
+	private int[] backupWellSums;
+	private long[] backupHashes;
+	
 	
 	
 	/**
@@ -37,23 +103,120 @@ public class Board	{
 	 measured in blocks.
 	*/
 	public Board(int width, int height) {
+		this(width, height, 1);
+	}
+	
+	
+	/**
+	 Creates an empty board that can undo up to undoDepth
+	 place()/clearRows() pairs -- see undo(). With an undoDepth
+	 of 1 this is the same as Board(width, height).
+	*/
+	public Board(int width, int height, int undoDepth) {
+		if (width<1 || width>MAX_WIDTH) throw new RuntimeException("Board width must be between 1 and " + MAX_WIDTH);
+		if (undoDepth<1) throw new RuntimeException("Bad undo depth " + undoDepth);
+		
 		this.width = width;
 		this.height = height;
-		grid = new boolean[width][height];
-		backupGrid = new boolean[width][height];
+		rows = new long[height];
+		fullRow = (width==MAX_WIDTH) ? -1L : (1L << width) - 1;
 		committed = true;
 		
 		//initialize arrays
 		columnHeights = new int[width];
-		rowWidths= new int[height];
+		columnBlocks = new int[width];
 		
-		backupWidths = new int[height];
-		backupHeights = new int[width];
+		//an empty board is flat, except that a single column is a well between the walls
+		for(int i = 0; i<width;i++){
+			wellSum += getWellDepth(i);
+		}
+		
+		setCheckMode(DEFAULT_CHECK_MODE, DEFAULT_CHECK_RATE);
+		
+		//enough for undoDepth place()s and clearRows()s without growing
+		journalRowIndexes = new int[2*height*undoDepth];
+		journalRowValues = new long[2*height*undoDepth];
+		journalColumnIndexes = new int[(4*width+8)*undoDepth];
+		journalColumnValues = new int[(4*width+8)*undoDepth];
+		journalColumnBlocks = new int[(4*width+8)*undoDepth];
+		
+		this.undoDepth = undoDepth;
+		undoLevel = 0;
+		levelRowStarts = new int[undoDepth];
+		levelColumnStarts = new int[undoDepth];
+		backupMaxHeights = new int[undoDepth];
+		backupBlockCounts = new int[undoDepth];
+		backupAggregateHeights = new int[undoDepth];
+		backupBumpinesses = new int[undoDepth];
+		backupWellSums = new int[undoDepth];
+		backupHashes = new long[undoDepth];
 		
 		maxHeight = 0;
 	}
 	
 	
+	/**
+	 Creates a copy of the given board, including its
+	 pending undo levels, so undo() on the copy reverts
+	 the same changes. The two boards share nothing.
+	*/
+	public Board(Board other) {
+		this(other, other.undoDepth);
+	}
+	
+	
+	/**
+	 Creates a copy of the given board that can undo up to
+	 undoDepth place()/clearRows() pairs -- e.g. a deep search
+	 copy of a committed depth 1 board. The undoDepth must cover
+	 the levels the other board has pending.
+	*/
+	public Board(Board other, int undoDepth) {
+		this(other.width, other.height, undoDepth);
+		if (undoDepth<other.undoLevel) throw new RuntimeException("Undo depth " + undoDepth + " is less than the " + other.undoLevel + " pending levels");
+		
+		System.arraycopy(other.rows, 0, rows, 0, height);
+		System.arraycopy(other.columnHeights, 0, columnHeights, 0, width);
+		System.arraycopy(other.columnBlocks, 0, columnBlocks, 0, width);
+		maxHeight = other.maxHeight;
+		blockCount = other.blockCount;
+		aggregateHeight = other.aggregateHeight;
+		bumpiness = other.bumpiness;
+		wellSum = other.wellSum;
+		hash = other.hash;
+		setCheckMode(other.checkMode, other.checkSampleRate);
+		
+		//the journal may have grown past the preallocated size
+		if (journalRowIndexes.length<other.journalRowCount) {
+			journalRowIndexes = new int[other.journalRowIndexes.length];
+			journalRowValues = new long[other.journalRowValues.length];
+		}
+		if (journalColumnIndexes.length<other.journalColumnCount) {
+			journalColumnIndexes = new int[other.journalColumnIndexes.length];
+			journalColumnValues = new int[other.journalColumnValues.length];
+			journalColumnBlocks = new int[other.journalColumnBlocks.length];
+		}
+		System.arraycopy(other.journalRowIndexes, 0, journalRowIndexes, 0, other.journalRowCount);
+		System.arraycopy(other.journalRowValues, 0, journalRowValues, 0, other.journalRowCount);
+		System.arraycopy(other.journalColumnIndexes, 0, journalColumnIndexes, 0, other.journalColumnCount);
+		System.arraycopy(other.journalColumnValues, 0, journalColumnValues, 0, other.journalColumnCount);
+		System.arraycopy(other.journalColumnBlocks, 0, journalColumnBlocks, 0, other.journalColumnCount);
+		journalRowCount = other.journalRowCount;
+		journalColumnCount = other.journalColumnCount;
+		
+		undoLevel = other.undoLevel;
+		committed = other.committed;
+		System.arraycopy(other.levelRowStarts, 0, levelRowStarts, 0, undoLevel);
+		System.arraycopy(other.levelColumnStarts, 0, levelColumnStarts, 0, undoLevel);
+		System.arraycopy(other.backupMaxHeights, 0, backupMaxHeights, 0, undoLevel);
+		System.arraycopy(other.backupBlockCounts, 0, backupBlockCounts, 0, undoLevel);
+		System.arraycopy(other.backupAggregateHeights, 0, backupAggregateHeights, 0, undoLevel);
+		System.arraycopy(other.backupBumpinesses, 0, backupBumpinesses, 0, undoLevel);
+		System.arraycopy(other.backupWellSums, 0, backupWellSums, 0, undoLevel);
+		System.arraycopy(other.backupHashes, 0, backupHashes, 0, undoLevel);
+	}
+	
+	
 	/**
 	 Returns the width of the board in blocks.
 	*/
@@ -79,67 +242,165 @@ public class Board	{
 	}
 	
 	/*
-	 * This method updates the maxHeight ivar
+	 * Maps a tetris.board.check property value to a CHECK_ constant.
 	 */
-	private void recalculateMaxHeight(){
-		maxHeight = 0;
-		
-		for(int i =0; i<columnHeights.length;i++){
-			if(maxHeight<columnHeights[i]){
-				maxHeight = columnHeights[i];
-			}
+	private static int parseCheckMode(String mode){
+		if(mode.equalsIgnoreCase("off")) return CHECK_OFF;
+		if(mode.equalsIgnoreCase("sampled")) return CHECK_SAMPLED;
+		if(mode.equalsIgnoreCase("full")) return CHECK_FULL;
+		throw new RuntimeException("Bad tetris.board.check mode: " + mode);
+	}
+	
+	
+	/**
+	 Sets how often this board checks its own consistency --
+	 one of CHECK_OFF, CHECK_SAMPLED or CHECK_FULL. In the sampled
+	 mode, one in every sampleRate operations is checked.
+	*/
+	public void setCheckMode(int mode, int sampleRate) {
+		if(mode<CHECK_OFF||mode>CHECK_FULL) throw new RuntimeException("Bad check mode " + mode);
+		if(sampleRate<1) throw new RuntimeException("Bad check sample rate " + sampleRate);
+		checkMode = mode;
+		checkSampleRate = sampleRate;
+		checkCountdown = sampleRate;
+	}
+	
+	
+	/**
+	 Returns the check mode -- CHECK_OFF, CHECK_SAMPLED or CHECK_FULL.
+	*/
+	public int getCheckMode() {
+		return checkMode;
+	}
+	
+	
+	/**
+	 Returns how many operations there are per check
+	 in the sampled mode.
+	*/
+	public int getCheckSampleRate() {
+		return checkSampleRate;
+	}
+	
+	
+	/**
+	 Returns the number of times sanityCheck() has run on this board.
+	*/
+	public long getChecksPerformed() {
+		return checksPerformed;
+	}
+	
+	
+	/**
+	 Returns the number of those checks that found the board inconsistent.
+	*/
+	public long getCheckViolations() {
+		return checkViolations;
+	}
+	
+	
+	/*
+	 * Called after each operation -- checks the board if the check mode says to.
+	 * In CHECK_OFF this is a single compare.
+	 */
+	private void autoCheck(){
+		if(checkMode==CHECK_OFF) return;
+		if(checkMode==CHECK_SAMPLED){
+			if(--checkCountdown>0) return;
+			checkCountdown = checkSampleRate;
 		}
+		String problem = findInconsistency();
+		if(problem!=null) violation(problem, checkMode==CHECK_FULL);
+	}
+	
+	
+	/*
+	 * Counts and reports a failed check, and throws if asked to.
+	 */
+	private void violation(String message, boolean fatal){
+		checkViolations++;
+		System.err.println(message);
+		if(fatal) throw new RuntimeException(message);
 	}
 	
 	
 	/**
 	 Checks the board for internal consistency -- used
-	 for debugging.
+	 for debugging. Runs whatever the check mode, and
+	 throws if the board is inconsistent.
 	*/
 	public void sanityCheck() {
-		if (DEBUG) {
-			
-			int tempMaxHeight = 0;
-			
-			//temp arrays to hold current heights and widths
-			int[] tempColumns = new int[width];
-			int[] tempRows = new int[height];
-			
-			//go through grid and calculate height and width of each row
-			for(int i = 0; i<width;i++){
-				for(int j = 0;j<height;j++){
-					if(grid[i][j]==true){
-						tempColumns[i] = j+1;
-						tempRows[j]++;
-					}
+		String problem = findInconsistency();
+		if(problem!=null) violation(problem, true);
+	}
+	
+	
+	/*
+	 * Rescans the board and returns what is wrong with its cached
+	 * state, or null if nothing is. Counts as a check performed.
+	 */
+	private String findInconsistency() {
+		checksPerformed++;
+		
+		int tempMaxHeight = 0;
+		int tempBlocks = 0;
+		int tempAggregate = 0;
+		int tempBumpiness = 0;
+		int tempWells = 0;
+		
+		//go through the rows from the top, calculating the height of each column
+		//as it is first seen. No temp arrays, so checking allocates nothing.
+		for(int i = 0; i<width;i++){
+			int tempColumn = 0;
+			for(int j = height-1;j>=0;j--){
+				if(getGrid(i, j)){
+					tempColumn = j+1;
+					break;
 				}
-				if(tempMaxHeight<tempColumns[i]) tempMaxHeight = tempColumns[i];
-				
 			}
+			if(tempMaxHeight<tempColumn) tempMaxHeight = tempColumn;
 			
-			if(tempMaxHeight!=maxHeight){
-				System.err.println("Max height should be " + tempMaxHeight + " but is " + maxHeight);
-				throw new RuntimeException("Max height is wrong");
-
+			if(tempColumn!=columnHeights[i]){
+				return("Column " + i + " has height " + columnHeights[i] + " but should have height " + tempColumn);
 			}
 			
-			//go through height and width arrays and make sure they match
-			
-			for(int i = 0;i<width;i++){
-				if(tempColumns[i]!=columnHeights[i]){
-					System.err.println("Column " + i + " has height " + columnHeights[i] + " but should have width " + tempColumns[i]);
-					throw new RuntimeException("Column " + i + " has the wrong height");
-				}
+			int tempColumnBlocks = 0;
+			for(int j = 0;j<tempColumn;j++){
+				if(getGrid(i, j)) tempColumnBlocks++;
 			}
-			
-			for(int j = 0; j<height;j++){
-				if(tempRows[j]!=rowWidths[j]){
-					System.err.println("row " + j + " has width " + rowWidths[j] + " but should have width " + tempRows[j]);
-					throw new RuntimeException("Row " + j + " has the wrong width");
-				}
+			if(tempColumnBlocks!=columnBlocks[i]){
+				return("Column " + i + " has " + columnBlocks[i] + " blocks but should have " + tempColumnBlocks);
 			}
 			
+			tempBlocks += tempColumnBlocks;
+			tempAggregate += tempColumn;
+			if(i>0) tempBumpiness += Math.abs(columnHeights[i]-columnHeights[i-1]);
+			tempWells += getWellDepth(i);
 		}
+		
+		if(tempBlocks!=blockCount||tempAggregate!=aggregateHeight||tempBumpiness!=bumpiness||tempWells!=wellSum){
+			return("Features should be blocks " + tempBlocks + " height " + tempAggregate + " bumpiness " + tempBumpiness + " wells " + tempWells
+					+ " but are " + blockCount + " " + aggregateHeight + " " + bumpiness + " " + wellSum);
+		}
+		
+		if(tempMaxHeight!=maxHeight){
+			return("Max height should be " + tempMaxHeight + " but is " + maxHeight);
+		}
+		
+		//row widths come straight from the row masks, so just make sure
+		//no bits are set outside the board
+		long tempHash = 0;
+		for(int j = 0; j<height;j++){
+			if((rows[j] & ~fullRow)!=0){
+				return("Row " + j + " has blocks outside the board: " + Long.toBinaryString(rows[j]));
+			}
+			tempHash ^= rowKey(j, rows[j]);
+		}
+		
+		if(tempHash!=hash){
+			return("Hash should be " + Long.toHexString(tempHash) + " but is " + Long.toHexString(hash));
+		}
+		return null;
 	}
 	
 	/**
@@ -179,7 +440,79 @@ public class Board	{
 	 the given row.
 	*/
 	public int getRowWidth(int y) {
-		 return rowWidths[y];
+		 return Long.bitCount(rows[y]);
+	}
+	
+	
+	/*
+	 Board features.
+	 These are kept up to date by place(), clearRows() and undo(),
+	 so they cost O(1) to read no matter how big the board is.
+	 A hole is an empty block below the top of its column, and
+	 a well is how far a column sits below both its neighbors,
+	 where the walls count as the full board height.
+	*/
+	
+	
+	/**
+	 Returns the number of filled blocks in the board.
+	*/
+	public int getBlockCount() {
+		return blockCount;
+	}
+	
+	
+	/**
+	 Returns the number of holes in the given column.
+	*/
+	public int getColumnHoles(int x) {
+		return columnHeights[x] - columnBlocks[x];
+	}
+	
+	
+	/**
+	 Returns the number of holes in the whole board.
+	*/
+	public int getHoles() {
+		return aggregateHeight - blockCount;
+	}
+	
+	
+	/**
+	 Returns the sum of all the column heights.
+	*/
+	public int getAggregateHeight() {
+		return aggregateHeight;
+	}
+	
+	
+	/**
+	 Returns the sum of the absolute height differences
+	 between each pair of neighboring columns.
+	*/
+	public int getBumpiness() {
+		return bumpiness;
+	}
+	
+	
+	/**
+	 Returns the depth of the well at the given column --
+	 how far it is below the lower of its two neighbors,
+	 or 0 if it is not below both.
+	*/
+	public int getWellDepth(int x) {
+		int left = (x==0) ? height : columnHeights[x-1];
+		int right = (x==width-1) ? height : columnHeights[x+1];
+		int depth = Math.min(left, right) - columnHeights[x];
+		return (depth>0) ? depth : 0;
+	}
+	
+	
+	/**
+	 Returns the sum of the well depths of all the columns.
+	*/
+	public int getWellSum() {
+		return wellSum;
 	}
 	
 
@@ -192,7 +525,7 @@ public class Board	{
 	*/
 	public boolean getGrid(int x, int y) {
 		if(x>=width||x<0||y>=height||y<0) return true;
-		else return grid[x][y]; 
+		else return ((rows[y] >>> x) & 1L) != 0; 
 	}
 	
 	
@@ -201,6 +534,72 @@ public class Board	{
 	public static final int PLACE_OUT_BOUNDS = 2;
 	public static final int PLACE_BAD = 3;
 	
+	/**
+	 Returns what place() would return for the given piece
+	 at the given position, without changing the board.
+	 Unlike place(), this may be called in any state, and
+	 needs no undo() afterwards.
+	*/
+	public int canPlace(Piece piece, int x, int y) {
+		long[] masks = piece.getRowMasks();
+		
+		//if any part of the piece is outside the bounds of the grid return PLACE_OUT_BOUNDS
+		if(x<0||x+piece.getWidth()>width||y<0||y+masks.length>height) {
+			return PLACE_OUT_BOUNDS;
+		}
+		
+		int result = PLACE_OK;
+		for(int i = 0; i<masks.length;i++){
+			long shifted = masks[i] << x;
+			
+			//if the grid is already filled under any row of the piece, return PLACE_BAD
+			if((rows[y+i] & shifted) != 0) return PLACE_BAD;
+			
+			if((rows[y+i] | shifted)==fullRow) result = PLACE_ROW_FILLED;
+		}
+		return result;
+	}
+	
+	
+	/**
+	 Returns true if the piece could be placed at the given
+	 position -- i.e. it is in bounds and hits no blocks.
+	 Does not change the board.
+	*/
+	public boolean fits(Piece piece, int x, int y) {
+		return canPlace(piece, x, y) <= PLACE_ROW_FILLED;
+	}
+	
+	
+	/**
+	 Returns a mask of every x at which the piece fits with its
+	 bottom at the given y -- bit x is set if fits(piece, x, y).
+	 Evaluates all the x positions for one rotation at once,
+	 and does not change the board.
+	*/
+	/*
+	 Implementation: a block of the piece at column b in row i collides
+	 for every x where bit x+b of the board row is set, so shifting each
+	 board row right by b and OR-ing gives all the bad x values together.
+	*/
+	public long fitMask(Piece piece, int y) {
+		long[] masks = piece.getRowMasks();
+		if(y<0||y+masks.length>height) return 0;
+		
+		long bad = 0;
+		for(int i = 0; i<masks.length;i++){
+			long row = rows[y+i];
+			long bits = masks[i];
+			while(bits!=0){
+				bad |= row >>> Long.numberOfTrailingZeros(bits);
+				bits &= bits-1;
+			}
+		}
+		
+		return ~bad & piece.getValidXMask(width);
+	}
+	
+	
 	/**
 	 Attempts to add the body of a piece to the board.
 	 Copies the piece blocks into the board grid.
@@ -217,77 +616,121 @@ public class Board	{
 	*/
 	public int place(Piece piece, int x, int y) {
 		
-		// flag !committed problem
-		if (!committed) throw new RuntimeException("place commit problem");
-		committed = false;
-		int result = PLACE_OK;
+		// flag !committed problem -- unless there is room for another undo level
+		if (undoLevel==undoDepth) throw new RuntimeException("place commit problem");
+		pushLevel();
 		
-		//temp int arrays to hold the x and y values of the piece
-		int xTemp[] = new int[piece.getBody().length];
-		int yTemp[] = new int[piece.getBody().length];
-		int counter = 0;
-		backup();
-
-		//for each point in the old body, fill the temp arrays with the new points and make sure
-		//these new points aren't outside the grid nor do they overlap any pieces.
-		for(TPoint p: piece.getBody()){
-			
-			//calculate new x and y values
-			int newX = x+p.x;
-			int newY = y+p.y;
-			
-			//if any of the values are outside the bounds of the grid return PLACE_OUT_BOUNDS
-			if(newX<0||newX>=width||newY<0||newY>=height) {
-				result = PLACE_OUT_BOUNDS;
-				break;
-			}
-			
-			//if the grid is already filled at that spot, return PLACE_BAD
-			else if(grid[newX][newY]==true) {
-				result = PLACE_BAD;
-				break;
+		int result = canPlace(piece, x, y);
+		
+		//if the piece fits, OR the rows of the piece into the grid.
+		//Then the height of each column it covers is adjusted.
+		if(result<=PLACE_ROW_FILLED){
+			long[] masks = piece.getRowMasks();
+			for(int i = 0; i<masks.length;i++){
+				setRow(y+i, rows[y+i] | (masks[i] << x));
 			}
 			
-			//if both these conditions are met then put the values in the array and move on
-			xTemp[counter] = newX;
-			yTemp[counter] = newY;
-			counter++;
-			
-		}
-				
-		//if this point has been reached, you can put the squares of the piece in the grid. 
-		//As this is done, the width and height of each column is adjusted.
-		if(result==PLACE_OK){
-			for(int i=0;i<xTemp.length;i++){
-				grid[xTemp[i]][yTemp[i]] = true;
-				if(columnHeights[xTemp[i]]<yTemp[i]+1){
-					columnHeights[xTemp[i]] = yTemp[i] +1;
+			int[] tops = piece.getTopProfile();
+			int[] blocks = piece.getColumnBlocks();
+			for(int i = 0; i<tops.length;i++){
+				setColumnBlocks(x+i, columnBlocks[x+i]+blocks[i]);
+				if(columnHeights[x+i]<y+tops[i]){
+					setColumnHeight(x+i, y+tops[i]);
+					if(maxHeight<y+tops[i]) maxHeight = y+tops[i];
 				}
-				rowWidths[yTemp[i]]++;
-				if(rowWidths[yTemp[i]]==width){
-					result = PLACE_ROW_FILLED;
-				}
-			
 			}
 		}
-
 		
-		recalculateMaxHeight();
-		sanityCheck();
+		autoCheck();
 		return result;
 	}
 	
 	
 	/*
-	 * Copy current grid to backups
+	 * Writes a row, first recording its old value in the journal.
 	 */
-	private void backup(){
-		for(int i = 0;i<grid.length;i++){
-			System.arraycopy(grid[i], 0, backupGrid[i], 0, grid[i].length);
+	private void setRow(int y, long mask){
+		if(journalRowCount==journalRowIndexes.length){
+			journalRowIndexes = Arrays.copyOf(journalRowIndexes, 2*journalRowCount);
+			journalRowValues = Arrays.copyOf(journalRowValues, 2*journalRowCount);
 		}
-		System.arraycopy(columnHeights, 0, backupHeights, 0, columnHeights.length);
-		System.arraycopy(rowWidths, 0, backupWidths, 0, backupWidths.length);
-
+		journalRowIndexes[journalRowCount] = y;
+		journalRowValues[journalRowCount] = rows[y];
+		journalRowCount++;
+		hash ^= rowKey(y, rows[y]) ^ rowKey(y, mask);
+		rows[y] = mask;
+	}
+	
+	/*
+	 * Records the old height and block count of a column in the journal.
+	 */
+	private void journalColumn(int x){
+		if(journalColumnCount==journalColumnIndexes.length){
+			journalColumnIndexes = Arrays.copyOf(journalColumnIndexes, 2*journalColumnCount);
+			journalColumnValues = Arrays.copyOf(journalColumnValues, 2*journalColumnCount);
+			journalColumnBlocks = Arrays.copyOf(journalColumnBlocks, 2*journalColumnCount);
+		}
+		journalColumnIndexes[journalColumnCount] = x;
+		journalColumnValues[journalColumnCount] = columnHeights[x];
+		journalColumnBlocks[journalColumnCount] = columnBlocks[x];
+		journalColumnCount++;
+	}
+	
+	/*
+	 * Writes a column height, first recording its old value in the journal,
+	 * and updates the features that depend on it. Only this column and its
+	 * neighbors can change their bumpiness and well depth.
+	 * Writing the same height again is not recorded.
+	 */
+	private void setColumnHeight(int x, int columnHeight){
+		if(columnHeights[x]==columnHeight) return;
+		journalColumn(x);
+		
+		int first = (x==0) ? 0 : x-1;
+		int last = (x==width-1) ? x : x+1;
+		for(int i = first; i<last;i++){
+			bumpiness -= Math.abs(columnHeights[i+1]-columnHeights[i]);
+		}
+		for(int i = first; i<=last;i++){
+			wellSum -= getWellDepth(i);
+		}
+		
+		aggregateHeight += columnHeight - columnHeights[x];
+		columnHeights[x] = columnHeight;
+		
+		for(int i = first; i<last;i++){
+			bumpiness += Math.abs(columnHeights[i+1]-columnHeights[i]);
+		}
+		for(int i = first; i<=last;i++){
+			wellSum += getWellDepth(i);
+		}
+	}
+	
+	/*
+	 * Writes a column block count, first recording its old value in the journal.
+	 */
+	private void setColumnBlocks(int x, int blocks){
+		journalColumn(x);
+		blockCount += blocks - columnBlocks[x];
+		columnBlocks[x] = blocks;
+	}
+	
+	/*
+	 * Opens a new undo level: notes where it starts in the journal, and saves
+	 * maxHeight and the board features for undo() to put back once the
+	 * journal has been played.
+	 */
+	private void pushLevel(){
+		levelRowStarts[undoLevel] = journalRowCount;
+		levelColumnStarts[undoLevel] = journalColumnCount;
+		backupMaxHeights[undoLevel] = maxHeight;
+		backupBlockCounts[undoLevel] = blockCount;
+		backupAggregateHeights[undoLevel] = aggregateHeight;
+		backupBumpinesses[undoLevel] = bumpiness;
+		backupWellSums[undoLevel] = wellSum;
+		backupHashes[undoLevel] = hash;
+		undoLevel++;
+		committed = false;
 	}
 	
 	
@@ -295,77 +738,72 @@ public class Board	{
 	 Deletes rows that are filled all the way across, moving
 	 things above down. Returns the number of rows cleared.
 	*/
+	/*
+	 Implementation: a single pass up to maxHeight that copies each
+	 surviving row down to its final position, so a row moves at most once
+	 no matter how many rows below it were cleared.
+	*/
 	public int clearRows() {
 		if(committed){
-			committed = false;
-			backup();
+			pushLevel();
 		}
 		
 		int rowsCleared = 0;
-		for(int i =0; i<maxHeight;i++){
-			rowsCleared+=clearSingleRow(i);
+		for(int from = 0; from<maxHeight;from++){
+			if(rows[from]==fullRow){
+				rowsCleared++;
+			}
+			else if(rowsCleared>0){
+				setRow(from-rowsCleared, rows[from]);
+			}
 		}
-		sanityCheck();
-		return rowsCleared;
-	}
-	
-	/*
-	 * Checks whether each row is filled. If it is, then it deletes the entire row and increments the counter. Returns the number of times
-	 * row x was cleared.
-	 */
-	private int clearSingleRow(int x){
 		
-		int rowsCleared =0;
-		//first check if every space in row x is filled
-		if(rowWidths[x]!=width) return rowsCleared;
-		rowsCleared++;
-
-		//shift all rows down one
-		for(int i =0; i<width;i++){
-			for(int j =x; j<=maxHeight;j++){
-				if(j<(height-1)){		
-					grid[i][j] = grid[i][j+1];
-				}
-				//this just sets the top row to false if need be
-				else{
-					grid[i][j] = false;
-				}
-				
+		if(rowsCleared>0){
+			//the rows that slid down leave empty rows behind them at the top
+			for(int j = maxHeight-rowsCleared; j<maxHeight;j++){
+				setRow(j, 0);
+			}
+			recalculateColumnHeights(maxHeight-rowsCleared);
+			
+			//every cleared row took one block out of every column
+			for(int i = 0; i<width;i++){
+				setColumnBlocks(i, columnBlocks[i]-rowsCleared);
 			}
 		}
 		
-		recalculateRowWidthsAndColumnHeights();
-		recalculateMaxHeight();
-
-		//check if a filled row dropped down into the current row and clear it if it did
-		rowsCleared += clearSingleRow(x);
-		
+		autoCheck();
 		return rowsCleared;
 	}
 	
 
 	
 	/*
-	 * Basic brute force recalculation of heights and widths.
+	 * Recalculates the column heights and max height by scanning down from the
+	 * given row, OR-ing rows together until every column has been seen.
+	 * Only the rows above the highest block in each column are visited.
 	 */
-	private void recalculateRowWidthsAndColumnHeights(){
-		int[] tempColumns = new int[width];
-		int[] tempRows = new int[height];
+	private void recalculateColumnHeights(int top){
+		long seen = 0;
+		maxHeight = 0;
 		
-		//go through grid and calculate height and width of each row
-		for(int i = 0; i<width;i++){
-			//int heightOfCurrentColumn = 0; //this helps calculate the max height
-
-			for(int j = 0;j<height;j++){
-				if(grid[i][j]==true){
-					tempColumns[i] = j+1;
-					tempRows[j]++;
-				}
-			}			
+		for(int j = top-1; j>=0 && seen!=fullRow;j--){
+			long newlySeen = rows[j] & ~seen;
+			if(maxHeight==0 && newlySeen!=0) maxHeight = j+1;
+			seen |= newlySeen;
+			
+			//every column that shows up for the first time has its top block in this row
+			while(newlySeen!=0){
+				setColumnHeight(Long.numberOfTrailingZeros(newlySeen), j+1);
+				newlySeen &= newlySeen-1;
+			}
 		}
 		
-		columnHeights = tempColumns;
-		rowWidths = tempRows;
+		//the columns never seen are now empty
+		long empty = fullRow & ~seen;
+		while(empty!=0){
+			setColumnHeight(Long.numberOfTrailingZeros(empty), 0);
+			empty &= empty-1;
+		}
 		
 	}
 
@@ -375,38 +813,131 @@ public class Board	{
 	 If the conditions for undo() are not met, such as
 	 calling undo() twice in a row, then the second undo() does nothing.
 	 See the overview docs.
+	 
+	 <p>
+	 A board made with an undoDepth greater than 1 lets place() be
+	 called again before a commit(), up to undoDepth times. Each undo()
+	 then reverts the latest place() and its clearRows(), so a search can
+	 play place/clearRows several moves deep and unwind them one at a time.
+	 The board is committed again once every level has been undone.
 	*/
 	public void undo() {
 		if(committed) return;
+		undoLevel--;
 
-		int[] temp = backupWidths;
-		backupWidths = rowWidths;
-		rowWidths = temp;
-		
-		temp = backupHeights;
-		backupHeights = columnHeights;
-		columnHeights = temp;
-		
-		boolean[][] tempGrid = backupGrid;
-		backupGrid = grid;
-		grid = tempGrid;
-		
-		recalculateMaxHeight();
+		//play the journal backwards to the start of the level, restoring every old value
+		int rowStart = levelRowStarts[undoLevel];
+		while(journalRowCount>rowStart){
+			journalRowCount--;
+			rows[journalRowIndexes[journalRowCount]] = journalRowValues[journalRowCount];
+		}
+		int columnStart = levelColumnStarts[undoLevel];
+		while(journalColumnCount>columnStart){
+			journalColumnCount--;
+			columnHeights[journalColumnIndexes[journalColumnCount]] = journalColumnValues[journalColumnCount];
+			columnBlocks[journalColumnIndexes[journalColumnCount]] = journalColumnBlocks[journalColumnCount];
+		}
+		maxHeight = backupMaxHeights[undoLevel];
+		blockCount = backupBlockCounts[undoLevel];
+		aggregateHeight = backupAggregateHeights[undoLevel];
+		bumpiness = backupBumpinesses[undoLevel];
+		wellSum = backupWellSums[undoLevel];
+		hash = backupHashes[undoLevel];
  	
-		commit();
-		sanityCheck();
+		if(undoLevel==0) commit();
+		autoCheck();
 }
 	
 	
 	/**
 	 Puts the board in the committed state.
+	 This closes every open undo level.
 	*/
 	public void commit() {
 		committed = true;
+		undoLevel = 0;
+		journalRowCount = 0;
+		journalColumnCount = 0;
+	}
+	
+	
+	/**
+	 Returns the number of place()s that undo() can currently
+	 revert -- 0 when the board is committed.
+	*/
+	public int getUndoLevel() {
+		return undoLevel;
+	}
+	
+	
+	/**
+	 Returns the most place()s that can be pending at once.
+	*/
+	public int getUndoDepth() {
+		return undoDepth;
 	}
 
 
 	
+	/*
+	 * The Zobrist key for one row holding the given mask. Rather than a table
+	 * of random keys per block, each (y, mask) pair is run through the
+	 * splitmix64 finalizer, so a row costs one key no matter how many blocks
+	 * changed in it. Empty rows have key 0, so they drop out of the hash.
+	 */
+	private static long rowKey(int y, long mask){
+		if(mask==0) return 0;
+		long z = mask + (y+1)*0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	
+	/**
+	 Returns a 64-bit hash of the blocks in the board -- the XOR
+	 of a key for every non-empty row. It is kept up to date by
+	 place(), clearRows() and undo(), so reading it is O(1).
+	 Equal boards always have equal hashes, whatever order
+	 the pieces were played in.
+	*/
+	public long getHash() {
+		return hash;
+	}
+	
+	
+	/**
+	 Returns true if the other object is a board of the
+	 same size with exactly the same blocks filled in.
+	*/
+	public boolean equals(Object obj) {
+		// standard equals() technique 1
+		if (obj == this) return true;
+		
+		// standard equals() technique 2
+		// (null will be false)
+		if (!(obj instanceof Board)) return false;
+		Board other = (Board)obj;
+		
+		if (width!=other.width || height!=other.height) return false;
+		if (hash!=other.hash || maxHeight!=other.maxHeight) return false;
+		
+		for(int j = 0; j<maxHeight;j++){
+			if(rows[j]!=other.rows[j]) return false;
+		}
+		return true;
+	}
+	
+	
+	/**
+	 Returns a hash code consistent with equals() -- the folded getHash().
+	 As with any mutable key, don't change a board while it is in a hash table.
+	*/
+	public int hashCode() {
+		return (int)(hash ^ (hash >>> 32));
+	}
+	
+	
 	/*
 	 Renders the board state as a big String, suitable for printing.
 	 This is the sort of print-obj-state utility that can help see complex
@@ -427,6 +958,73 @@ public class Board	{
 		return(buff.toString());
 	}
 	
+	
+	/*
+	 * Unit Testing
+	 */
+	
+	// rounds of the hot path to measure, after as many to warm up
+	private static final int ALLOCATION_ROUNDS = 20000;
+	
+	/*
+	 * Checks that the hot path -- place(), undo(), clearRows(), dropHeight()
+	 * with full checking on, and DefaultBrain.bestMove() with a Move to
+	 * reuse -- allocates nothing, using the JVM's per-thread allocation
+	 * counter. Throws if any bytes were allocated.
+	 */
+	public static void main(String[] args){
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if(!threads.isThreadAllocatedMemorySupported()) throw new RuntimeException("No allocation counter in this JVM");
+		threads.setThreadAllocatedMemoryEnabled(true);
+		
+		// four rows full but for the last column, so a stick clears them
+		Board board = new Board(10, 24);
+		Piece[] pieces = Piece.getPieces();
+		Piece block = new Piece("0 0");
+		for(int y = 0; y<4; y++){
+			for(int x = 0; x<9; x++){
+				board.place(block, x, y);
+				board.commit();
+			}
+		}
+		board.setCheckMode(CHECK_FULL, 1);
+		
+		DefaultBrain brain = new DefaultBrain();
+		Brain.Move move = new Brain.Move();
+		long sum = allocationRounds(board, pieces, brain, move);	// warm up
+		
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		sum += allocationRounds(board, pieces, brain, move);
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		
+		System.out.println(ALLOCATION_ROUNDS + " rounds, " + allocated + " bytes allocated (" + sum + ")");
+		if(allocated!=0) throw new RuntimeException("Hot path allocated " + allocated + " bytes");
+	}
+	
+	/*
+	 * Plays each piece's best move and undoes it, dropping the stick in
+	 * the last column to clear rows. Returns a sum of the results so
+	 * none of the work can be optimized away.
+	 */
+	private static long allocationRounds(Board board, Piece[] pieces, Brain brain, Brain.Move move){
+		long sum = 0;
+		for(int round = 0; round<ALLOCATION_ROUNDS; round++){
+			Piece piece = pieces[round % pieces.length];
+			if(brain.bestMove(board, piece, board.getHeight(), move)!=null){
+				sum += board.place(move.piece, move.x, move.y);
+				board.undo();
+			}
+			
+			int x = board.getWidth()-1;
+			int y = board.dropHeight(pieces[Piece.STICK], x);
+			if(board.place(pieces[Piece.STICK], x, y)==PLACE_ROW_FILLED) sum += board.clearRows();
+			board.undo();
+		}
+		return sum;
+	}
+	
 }
 
 
@@ -0,0 +1,300 @@
+// BrainSimulator.java
+
+package tetris;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ Plays many headless games with a brain to measure how good and
+ how fast it is. Each game runs on a TetrisEngine, seeded so the
+ same seed always deals the same pieces, and goes until the brain
+ tops out or the piece limit is hit. The games run on a fixed pool
+ with one thread per core, and each thread gets its own brain from
+ the factory, since brains keep scratch state between calls.
+
+ <p>
+ From the command line:
+ <pre>
+ java tetris.BrainSimulator [brain class] [games] [piece limit] [first seed] [threads]
+ </pre>
+ e.g. "java tetris.BrainSimulator ExpectimaxBrain 200 10000" plays
+ 200 games of at most 10000 pieces each and prints a summary.
+*/
+public class BrainSimulator {
+
+    /**
+     Makes a new brain for each worker thread.
+    */
+    public interface BrainFactory {
+        public Brain newBrain();
+    }
+
+    /**
+     The default number of pieces after which a game stops --
+     a good brain can otherwise play forever.
+    */
+    public static final int DEFAULT_PIECE_LIMIT = 100000;
+
+    private final BrainFactory factory;
+    private int pieceLimit;
+    private int threads;
+    private int width;
+    private int height;
+    private Piece[] pieces;
+
+
+    /**
+     Creates a simulator for standard 10x20 games with the standard
+     pieces, the default piece limit, and one thread per core.
+    */
+    public BrainSimulator(BrainFactory factory) {
+        this.factory = factory;
+        pieceLimit = DEFAULT_PIECE_LIMIT;
+        threads = Runtime.getRuntime().availableProcessors();
+        width = TetrisEngine.WIDTH;
+        height = TetrisEngine.HEIGHT;
+        pieces = Piece.getPieces();
+    }
+
+
+    /**
+     Sets the number of pieces after which a game stops, or 0 for no limit.
+    */
+    public void setPieceLimit(int pieceLimit) {
+        this.pieceLimit = pieceLimit;
+    }
+
+    /**
+     Sets the number of worker threads.
+    */
+    public void setThreads(int threads) {
+        if (threads < 1) throw new RuntimeException("Bad thread count " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     Sets the board size, not counting the TOP_SPACE rows for new pieces.
+    */
+    public void setBoardSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     Sets the root pieces games are dealt from -- e.g. a set from Polyominoes.
+    */
+    public void setPieces(Piece[] pieces) {
+        this.pieces = pieces;
+    }
+
+
+    /**
+     The results of one run -- one entry per game, in seed order,
+     plus the wall clock time the whole run took.
+    */
+    public static class Result {
+        public final long[] seeds;
+        public final int[] pieces;      // pieces played, counting the one that topped out
+        public final int[] lines;       // rows cleared
+        public final int[] scores;      // score as TetrisEngine counts it
+        public final long elapsedNanos;
+
+        Result(long[] seeds, int[] pieces, int[] lines, int[] scores, long elapsedNanos) {
+            this.seeds = seeds;
+            this.pieces = pieces;
+            this.lines = lines;
+            this.scores = scores;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getGames() {
+            return seeds.length;
+        }
+
+        public long getTotalPieces() {
+            long total = 0;
+            for (int n : pieces) total += n;
+            return total;
+        }
+
+        /**
+         Pieces played per second of wall clock time, over all threads.
+        */
+        public double getPiecesPerSecond() {
+            return getTotalPieces() / (elapsedNanos / 1e9);
+        }
+
+        /**
+         Games finished per second of wall clock time, over all threads.
+        */
+        public double getGamesPerSecond() {
+            return getGames() / (elapsedNanos / 1e9);
+        }
+
+        /**
+         Returns a multi-line summary: mean, standard deviation and
+         quartiles of pieces, lines and score, then the throughput.
+        */
+        public String toString() {
+            StringBuilder buff = new StringBuilder();
+            buff.append(String.format("%d games in %.2f s%n", getGames(), elapsedNanos / 1e9));
+            buff.append(String.format("%-7s %10s %10s %8s %8s %8s %8s %8s%n",
+                    "", "mean", "stddev", "min", "25%", "median", "75%", "max"));
+            summarize(buff, "pieces", pieces);
+            summarize(buff, "lines", lines);
+            summarize(buff, "score", scores);
+            buff.append(String.format("%.0f pieces/s, %.2f games/s%n", getPiecesPerSecond(), getGamesPerSecond()));
+            return buff.toString();
+        }
+
+        private static void summarize(StringBuilder buff, String name, int[] values) {
+            int[] sorted = values.clone();
+            Arrays.sort(sorted);
+            int n = sorted.length;
+
+            double sum = 0;
+            for (int v : sorted) sum += v;
+            double mean = sum / n;
+            double squares = 0;
+            for (int v : sorted) squares += (v - mean) * (v - mean);
+            double stddev = (n > 1 ? Math.sqrt(squares / (n - 1)) : 0);
+
+            buff.append(String.format("%-7s %10.1f %10.1f %8d %8d %8d %8d %8d%n", name, mean, stddev,
+                    sorted[0], sorted[(n - 1) / 4], sorted[(n - 1) / 2], sorted[3 * (n - 1) / 4], sorted[n - 1]));
+        }
+    }
+
+
+    /**
+     Plays the given number of games with the seeds firstSeed,
+     firstSeed+1, ... and waits for them all to finish.
+    */
+    public Result run(int games, long firstSeed) {
+        if (games < 1) throw new RuntimeException("Bad game count " + games);
+
+        final long[] seeds = new long[games];
+        final int[] pieceCounts = new int[games];
+        final int[] lines = new int[games];
+        final int[] scores = new int[games];
+
+        // one brain per worker, made lazily on that worker
+        final ThreadLocal<Brain> brains = new ThreadLocal<Brain>() {
+            protected Brain initialValue() {
+                return factory.newBrain();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, games));
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(games);
+            for (int i = 0; i < games; i++) {
+                final int game = i;
+                seeds[game] = firstSeed + game;
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        TetrisEngine engine = playGame(brains.get(), seeds[game]);
+                        // the engine counts the piece it stops at, past the limit
+                        int count = engine.getCount();
+                        pieceCounts[game] = (pieceLimit > 0 ? Math.min(count, pieceLimit) : count);
+                        lines[game] = engine.getLinesCleared();
+                        scores[game] = engine.getScore();
+                    }
+                }));
+            }
+
+            // get() also makes the workers' writes to the arrays visible here
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("simulation interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("game failed", e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return new Result(seeds, pieceCounts, lines, scores, System.nanoTime() - start);
+    }
+
+
+    /**
+     Plays one game to the end with the given brain, and returns
+     the engine so the caller can read off the count and score.
+    */
+    public TetrisEngine playGame(Brain brain, long seed) {
+        return playGame(width, height, pieces, pieceLimit, brain, seed);
+    }
+
+
+    /**
+     Plays one game to the end on a width x height board (not counting
+     the TOP_SPACE rows), dealing from the given root pieces, stopping
+     after pieceLimit pieces (0 for no limit). Needs no simulator, so
+     callers that run their own games -- e.g. WeightTuner -- can use it.
+    */
+    public static TetrisEngine playGame(int width, int height, Piece[] pieces, int pieceLimit, Brain brain, long seed) {
+        TetrisEngine engine = new TetrisEngine(width, height, TetrisEngine.TOP_SPACE);
+        engine.setPieces(pieces);
+        engine.setPieceLimit(pieceLimit);
+        engine.startGame(new Random(seed));
+
+        Brain.Move move = new Brain.Move();
+        while (engine.isGameOn()) {
+            if (engine.playBrainMove(brain, move) == null) break;
+        }
+        return engine;
+    }
+
+
+    /*
+     * Makes the brain named on the command line with its no-argument
+     * constructor; a name without a package is taken to be in this one.
+     */
+    private static BrainFactory factoryFor(String name) throws ClassNotFoundException {
+        if (name.indexOf('.') < 0) name = "tetris." + name;
+        final Class<? extends Brain> brainClass = Class.forName(name).asSubclass(Brain.class);
+
+        return new BrainFactory() {
+            public Brain newBrain() {
+                try {
+                    return brainClass.getDeclaredConstructor().newInstance();
+                }
+                catch (ReflectiveOperationException e) {
+                    throw new RuntimeException("can't make a " + brainClass.getName(), e);
+                }
+            }
+        };
+    }
+
+
+    /**
+     Runs a simulation from the command line and prints the summary.
+     Args, all optional: brain class (DefaultBrain), games (100),
+     piece limit (DEFAULT_PIECE_LIMIT), first seed (0), threads (one per core).
+    */
+    public static void main(String[] args) throws Exception {
+        String brainName = (args.length > 0 ? args[0] : "DefaultBrain");
+        int games = (args.length > 1 ? Integer.parseInt(args[1]) : 100);
+
+        BrainSimulator simulator = new BrainSimulator(factoryFor(brainName));
+        if (args.length > 2) simulator.setPieceLimit(Integer.parseInt(args[2]));
+        long firstSeed = (args.length > 3 ? Long.parseLong(args[3]) : 0);
+        if (args.length > 4) simulator.setThreads(Integer.parseInt(args[4]));
+
+        System.out.println(brainName);
+        System.out.print(simulator.run(games, firstSeed));
+    }
+}
@@ -36,28 +36,16 @@ public class DefaultBrain implements Brain {
         
         // loop through all the rotations
         while (true) {
-            final int yBound = limitHeight - current.getHeight()+1;
             final int xBound = board.getWidth() - current.getWidth()+1;
             
             // For current rotation, try all the possible columns
             for (int x = 0; x<xBound; x++) {
-                int y = board.dropHeight(current, x);
-                if (y<yBound) {    // piece does not stick up too far
-                    int result = board.place(current, x, y);
-                    if (result <= Board.PLACE_ROW_FILLED) {
-                        if (result == Board.PLACE_ROW_FILLED) board.clearRows();
-                        
-                        double score = rateBoard(board);
-                        
-                        if (score<bestScore) {
-                            bestScore = score;
-                            bestX = x;
-                            bestY = y;
-                            bestPiece = current;
-                        }
-                    }
-                    
-                    board.undo();    // back out that play, loop around for the next
+                double score = rateMove(board, current, x, limitHeight);
+                if (score<bestScore) {
+                    bestScore = score;
+                    bestX = x;
+                    bestY = board.dropHeight(current, x);
+                    bestPiece = current;
                 }
             }
             
@@ -76,34 +64,52 @@ public class DefaultBrain implements Brain {
     }
     
     
+    /**
+     Drops the piece straight down at x, rates the resulting board
+     with rateBoard(), and backs the play out again. Returns the score,
+     or Double.POSITIVE_INFINITY if the piece would stick up past
+     limitHeight or can't be placed. The board must be able to take
+     one more place() -- e.g. be committed.
+    */
+    protected double rateMove(Board board, Piece piece, int x, int limitHeight) {
+        return ratePlacement(board, piece, x, board.dropHeight(piece, x), limitHeight);
+    }
+    
+    
+    /**
+     Same as rateMove(), but for the piece at (x, y) rather than
+     dropped straight down -- e.g. a play tucked under an overhang.
+    */
+    protected double ratePlacement(Board board, Piece piece, int x, int y, int limitHeight) {
+        if (y >= limitHeight - piece.getHeight()+1) return Double.POSITIVE_INFINITY;    // piece sticks up too far
+        
+        double score = Double.POSITIVE_INFINITY;
+        int result = board.place(piece, x, y);
+        if (result <= Board.PLACE_ROW_FILLED) {
+            if (result == Board.PLACE_ROW_FILLED) board.clearRows();
+            score = rateBoard(board);
+        }
+        
+        board.undo();    // back out that play
+        return score;
+    }
+    
+    
     /*
      A simple brain function.
      Given a board, produce a number that rates
      that board position -- larger numbers for worse boards.
      This version just counts the height
      and the number of "holes" in the board.
+     The board keeps both up to date as pieces are placed,
+     so this is O(1) per candidate.
     */
     public double rateBoard(Board board) {
         final int width = board.getWidth();
         final int maxHeight = board.getMaxHeight();
         
-        int sumHeight = 0;
-        int holes = 0;
-        
-        // Count the holes, and sum up the heights
-        for (int x=0; x<width; x++) {
-            final int colHeight = board.getColumnHeight(x);
-            sumHeight += colHeight;
-            
-            int y = colHeight - 2;    // addr of first possible hole
-            
-            while (y>=0) {
-                if  (!board.getGrid(x,y)) {
-                    holes++;
-                }
-                y--;
-            }
-        }
+        int sumHeight = board.getAggregateHeight();
+        int holes = board.getHoles();
         
         double avgHeight = ((double)sumHeight)/width;
         
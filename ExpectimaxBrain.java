@@ -0,0 +1,261 @@
+// ExpectimaxBrain.java
+
+package tetris;
+
+/**
+ A brain for when the next piece is unknown.
+ For each play of the current piece, bestMove() works out the
+ expected score of the best follow-up: the average, over every
+ piece that might come next (each as likely, like TetrisEngine.pickNextPiece()),
+ of the lowest rateBoard() score that piece can reach. It picks the
+ play with the lowest expected score. With a depth above 2 the same
+ expectation is taken again below each follow-up.
+ 
+ <p>
+ That is a lot of plays -- about 7x30x30 per move at depth 2 -- so
+ the expected score of every board is cached in a TranspositionTable
+ keyed by Board.getHash(), and a play is abandoned as soon as the
+ pieces rated so far prove it can't beat the best play found.
+ The proof uses minimumScore(), the lowest score rateBoard() can give;
+ subclasses with a different rateBoard() should override it to match.
+*/
+/*
+ Implementation: one copy of the board with an undo stack as deep as
+ the search. chanceValue() is the expectation over pieces and playValue()
+ the best play of one piece; each passes down a cutoff, and returns early
+ with a value at or above the cutoff once it is clear the caller won't
+ use it. Only values that were computed in full go in the table.
+*/
+public class ExpectimaxBrain extends DefaultBrain {
+    
+    public static final int DEFAULT_DEPTH = 2;
+    public static final int DEFAULT_TABLE_BITS = 16;
+    
+    /**
+     The score of a board on which some piece can't be played at all.
+    */
+    public static final double LOSS_SCORE = 1e6;
+    
+    private final int depth;
+    private final Piece[] pieces;
+    private final TranspositionTable table;
+    
+    // stats for the last bestMove()
+    private int nodes;
+    private int cacheHits;
+    
+    // System.nanoTime() to give up at, or 0 for no limit -- see startSearch()
+    private long deadline;
+    private boolean timedOut;
+    
+    
+    /**
+     Creates a brain over the 7 standard pieces with the default depth.
+    */
+    public ExpectimaxBrain() {
+        this(DEFAULT_DEPTH, Piece.getPieces(), new TranspositionTable(DEFAULT_TABLE_BITS));
+    }
+    
+    
+    /**
+     Creates a brain that looks depth plays ahead, counting the current
+     one, over the given set of root pieces, caching in the given table.
+     The table may be shared with other brains over the same pieces.
+    */
+    public ExpectimaxBrain(int depth, Piece[] pieces, TranspositionTable table) {
+        if (depth<1) throw new RuntimeException("Bad depth " + depth);
+        this.depth = depth;
+        this.pieces = pieces.clone();
+        this.table = table;
+    }
+    
+    
+    public int getDepth() {
+        return depth;
+    }
+    
+    
+    /**
+     Returns the number of boards rated by the last bestMove().
+    */
+    public int getNodes() {
+        return nodes;
+    }
+    
+    
+    /**
+     Returns the number of expected scores the last
+     bestMove() found in the table instead of computing.
+    */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+    
+    
+    /**
+     Given a piece and a board, returns a move object for the play with
+     the lowest expected score, or null if no play is possible.
+     The move's score is that expected score.
+     See the Brain interface for the other details.
+    */
+    public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+        board.commit();
+        Board work = new Board(board, depth);
+        startSearch(0);
+        return searchMove(work, piece, depth, limitHeight, move);
+    }
+    
+    
+    /*
+     Resets the stats, and sets the System.nanoTime() at which searchMove()
+     gives up, or 0 for no limit. A search that gives up returns a
+     meaningless move, and isTimedOut() says so.
+    */
+    void startSearch(long deadline) {
+        nodes = 0;
+        cacheHits = 0;
+        this.deadline = deadline;
+        timedOut = false;
+    }
+    
+    
+    /*
+     Whether the search ran past its deadline and gave up.
+    */
+    boolean isTimedOut() {
+        return timedOut;
+    }
+    
+    
+    /*
+     Picks the play of the piece on the work board whose board, searched
+     to plies-1 further plays, has the lowest value. Returns null if the
+     piece can't be played.
+    */
+    Brain.Move searchMove(Board work, Piece piece, int plies, int limitHeight, Brain.Move move) {
+        double bestScore = 1e20;
+        int bestX = 0;
+        int bestY = 0;
+        Piece bestPiece = null;
+        Piece current = piece;
+        
+        // loop through all the rotations
+        while (true) {
+            final int xBound = work.getWidth() - current.getWidth()+1;
+            
+            // For current rotation, try all the possible columns
+            for (int x = 0; x<xBound; x++) {
+                int y = work.dropHeight(current, x);
+                double score = playScore(work, current, x, y, plies-1, limitHeight, bestScore);
+                if (score<bestScore) {
+                    bestScore = score;
+                    bestX = x;
+                    bestY = y;
+                    bestPiece = current;
+                }
+            }
+            
+            current = current.fastRotation();
+            if (current == piece) break;    // break if back to original rotation
+        }
+        
+        if (bestPiece == null) return(null);    // could not find a play at all!
+        
+        if (move==null) move = new Brain.Move();
+        move.x = bestX;
+        move.y = bestY;
+        move.piece = bestPiece;
+        move.score = bestScore;
+        return(move);
+    }
+    
+    
+    /**
+     Returns the lowest score rateBoard() could give any board
+     reachable from this one. DefaultBrain's score only adds up
+     heights and holes, so 0 will do. A tighter bound prunes more.
+    */
+    protected double minimumScore(Board board) {
+        return 0;
+    }
+    
+    
+    /*
+     Plays the piece at (x, y), returns the value of the resulting board
+     searched pliesLeft plays deeper (POSITIVE_INFINITY if the play isn't
+     allowed), and backs the play out.
+    */
+    private double playScore(Board work, Piece piece, int x, int y, int pliesLeft, int limitHeight, double cutoff) {
+        if (y >= limitHeight - piece.getHeight()+1) return Double.POSITIVE_INFINITY;    // piece sticks up too far
+        
+        // look at the clock now and then; once out of time, unwind fast
+        if (deadline!=0 && (nodes & 0xFF)==0 && System.nanoTime()-deadline > 0) timedOut = true;
+        if (timedOut) return Double.POSITIVE_INFINITY;
+        
+        double score = Double.POSITIVE_INFINITY;
+        int result = work.place(piece, x, y);
+        if (result <= Board.PLACE_ROW_FILLED) {
+            if (result == Board.PLACE_ROW_FILLED) work.clearRows();
+            nodes++;
+            score = (pliesLeft==0) ? rateBoard(work) : chanceValue(work, pliesLeft, limitHeight, cutoff);
+        }
+        work.undo();
+        return score;
+    }
+    
+    
+    /*
+     The average over the pieces of the best value each can reach from
+     this board. Once the average is sure to be at least cutoff, returns
+     early with a value at least cutoff.
+    */
+    private double chanceValue(Board work, int pliesLeft, int limitHeight, double cutoff) {
+        long key = work.getHash() ^ (limitHeight * 0x9E3779B97F4A7C15L);
+        long entry = table.probe(key);
+        if (entry!=TranspositionTable.MISS && TranspositionTable.depth(entry)==pliesLeft) {
+            cacheHits++;
+            return TranspositionTable.score(entry);
+        }
+        
+        double floor = minimumScore(work);
+        double sum = 0;
+        for (int i = 0; i<pieces.length; i++) {
+            // the best this piece could do and still leave the average under the cutoff
+            double pieceCutoff = cutoff*pieces.length - sum - floor*(pieces.length-1-i);
+            double value = playValue(work, pieces[i], pliesLeft, limitHeight, pieceCutoff);
+            sum += value;
+            
+            if ((sum + floor*(pieces.length-1-i))/pieces.length >= cutoff) {
+                return (sum + floor*(pieces.length-1-i))/pieces.length;    // pruned -- not cached
+            }
+        }
+        
+        if (timedOut) return Double.POSITIVE_INFINITY;    // not the real value -- not cached
+        
+        double expected = sum/pieces.length;
+        table.store(key, expected, pliesLeft, 0);
+        return expected;
+    }
+    
+    
+    /*
+     The lowest value of any play of the piece, or LOSS_SCORE if it
+     can't be played. Deeper searches get the lower of the best so far
+     and the cutoff as theirs, so a result at or above the cutoff may
+     only be a lower bound -- which is all the caller needs then.
+    */
+    private double playValue(Board work, Piece piece, int pliesLeft, int limitHeight, double cutoff) {
+        double best = LOSS_SCORE;
+        Piece current = piece;
+        do {
+            final int xBound = work.getWidth() - current.getWidth()+1;
+            for (int x = 0; x<xBound; x++) {
+                int y = work.dropHeight(current, x);
+                double score = playScore(work, current, x, y, pliesLeft-1, limitHeight, Math.min(best, cutoff));
+                if (score<best) best = score;
+            }
+            current = current.fastRotation();
+        } while (current!=piece);
+        return best;
+    }
+}
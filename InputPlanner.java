@@ -0,0 +1,295 @@
+// InputPlanner.java
+
+package tetris;
+
+import java.util.Arrays;
+
+/**
+ Works out the shortest series of verbs -- ROTATE, LEFT, RIGHT, DOWN,
+ DROP, as TetrisEngine.tick() takes them -- that steers a piece from
+ where it is to a target play, e.g. a brain's Brain.Move.
+ Sent to the engine all at once, the verbs put the piece in place
+ before the timer has moved it at all.
+
+ <p>
+ For the standard board, the plays straight down from where a new piece
+ appears come from a table worked out once on an empty board: the
+ fewest rotations and sideways moves, ending with a DROP. Any series
+ that works on a real board, plus a DROP, also works on the empty one,
+ so the real board can save at most the DROP -- and the table notes at
+ which heights the empty board can get there one verb sooner. Away from
+ those heights, when the table's verbs work on the real board, nothing
+ shorter could. Otherwise -- a stack in the way, a tuck under an
+ overhang, some other board size or start -- a breadth-first search
+ over (rotation, x, y) finds the shortest series.
+*/
+public class InputPlanner {
+
+    private static final int[] NO_VERBS = new int[0];
+
+    // the verbs the search tries, in order of preference on a tie
+    private static final int[] VERBS = {
+        TetrisEngine.ROTATE, TetrisEngine.LEFT, TetrisEngine.RIGHT, TetrisEngine.DROP, TetrisEngine.DOWN
+    };
+
+
+    /**
+     Returns the shortest series of verbs that takes the piece at (x, y)
+     to targetPiece at (targetX, targetY), or null if it can't get there.
+     The board should be committed -- in particular the piece itself
+     should not be in it. targetPiece should be a rotation of the piece.
+    */
+    public static int[] plan(Board board, Piece piece, int x, int y, Piece targetPiece, int targetX, int targetY) {
+        int[] verbs = StandardFinesse.lookup(board, piece, x, y, targetPiece, targetX, targetY);
+        if (verbs!=null && leadsTo(board, piece, x, y, verbs, targetPiece, targetX, targetY)) return verbs;
+
+        return search(board, piece, x, y, targetPiece, targetX, targetY);
+    }
+
+
+    /**
+     Same as plan(), for the piece and position of a Brain.Move.
+    */
+    public static int[] plan(Board board, Piece piece, int x, int y, Brain.Move move) {
+        return plan(board, piece, x, y, move.piece, move.x, move.y);
+    }
+
+
+    /**
+     Returns the shortest series of verbs from the piece at (x, y) to
+     targetPiece at (targetX, targetY), or null if it can't get there,
+     by searching all the positions the piece can reach. See plan().
+    */
+    public static int[] search(Board board, Piece piece, int x, int y, Piece targetPiece, int targetX, int targetY) {
+        if (!board.fits(piece, x, y)) return null;
+        if (piece.equals(targetPiece) && x==targetX && y==targetY) return NO_VERBS;
+
+        Piece[] rotations = rotations(piece);
+        int states = rotations.length * board.getHeight() * board.getWidth();
+        int[] parent = new int[states];
+        byte[] verbTo = new byte[states];
+
+        int end = bfs(board, rotations, x, y, parent, verbTo, targetPiece, targetX, targetY);
+        if (end<0) return null;
+        return path(parent, verbTo, y * board.getWidth() + x, end);
+    }
+
+
+    /*
+     * The rotations of the piece, in fastRotation() order from it.
+     */
+    private static Piece[] rotations(Piece piece) {
+        int numRotations = 0;
+        Piece current = piece;
+        do {
+            numRotations++;
+            current = current.fastRotation();
+        } while (current!=piece && current!=null);
+
+        Piece[] rotations = new Piece[numRotations];
+        current = piece;
+        for (int r = 0; r<numRotations; r++) {
+            rotations[r] = current;
+            current = current.fastRotation();
+        }
+        return rotations;
+    }
+
+
+    /*
+     * Breadth-first search from rotations[0] at (x, y), which must fit.
+     * States are (rotation, y, x) packed in an int -- the piece can only
+     * be where x and y are on the board. Fills in each state's parent
+     * (-1 if not reached) and the verb that got there, and returns the
+     * target state as soon as it is reached, or -1 if it never is.
+     * A null targetPiece searches everywhere.
+     */
+    private static int bfs(Board board, Piece[] rotations, int x, int y, int[] parent, byte[] verbTo,
+            Piece targetPiece, int targetX, int targetY) {
+        final int numRotations = rotations.length;
+        final int width = board.getWidth();
+        final int height = board.getHeight();
+        Arrays.fill(parent, -1);
+        int[] queue = new int[parent.length];
+        int head = 0;
+        int tail = 0;
+
+        int start = (y * width) + x;
+        parent[start] = start;
+        queue[tail++] = start;
+
+        while (head<tail) {
+            int state = queue[head++];
+            int r = state / (height * width);
+            int sy = (state / width) % height;
+            int sx = state % width;
+            Piece from = rotations[r];
+
+            for (int verb : VERBS) {
+                // where the verb takes the piece, as TetrisEngine.computeNewPosition() does
+                int nr = r;
+                int nx = sx;
+                int ny = sy;
+                switch (verb) {
+                    case TetrisEngine.LEFT: nx--; break;
+                    case TetrisEngine.RIGHT: nx++; break;
+                    case TetrisEngine.DOWN: ny--; break;
+                    case TetrisEngine.ROTATE:
+                        nr = (r+1 == numRotations ? 0 : r+1);
+                        nx = TetrisEngine.rotatedX(from, rotations[nr], sx);
+                        ny = TetrisEngine.rotatedY(from, rotations[nr], sy);
+                        break;
+                    case TetrisEngine.DROP:
+                        ny = Math.min(board.dropHeight(from, sx), sy);
+                        break;
+                }
+                if (nx<0 || nx>=width || ny<0 || ny>=height) continue;
+                if (!board.fits(rotations[nr], nx, ny)) continue;
+
+                int next = (nr * height + ny) * width + nx;
+                if (parent[next]>=0) continue;
+                parent[next] = state;
+                verbTo[next] = (byte)verb;
+
+                if (nx==targetX && ny==targetY && rotations[nr].equals(targetPiece)) return next;
+                queue[tail++] = next;
+            }
+        }
+        return -1;
+    }
+
+
+    /*
+     * Follows the parents back from the end state and returns
+     * the verbs in order.
+     */
+    private static int[] path(int[] parent, byte[] verbTo, int start, int end) {
+        int length = 0;
+        for (int state = end; state!=start; state = parent[state]) length++;
+
+        int[] verbs = new int[length];
+        for (int state = end; state!=start; state = parent[state]) {
+            verbs[--length] = verbTo[state];
+        }
+        return verbs;
+    }
+
+
+    /*
+     * Plays the verbs out on the board the way TetrisEngine does, and
+     * returns true if every one works and they end on the target.
+     */
+    private static boolean leadsTo(Board board, Piece piece, int x, int y, int[] verbs,
+            Piece targetPiece, int targetX, int targetY) {
+        for (int verb : verbs) {
+            Piece next = piece;
+            int nx = x;
+            int ny = y;
+            switch (verb) {
+                case TetrisEngine.LEFT: nx--; break;
+                case TetrisEngine.RIGHT: nx++; break;
+                case TetrisEngine.DOWN: ny--; break;
+                case TetrisEngine.ROTATE:
+                    next = piece.fastRotation();
+                    nx = TetrisEngine.rotatedX(piece, next, x);
+                    ny = TetrisEngine.rotatedY(piece, next, y);
+                    break;
+                case TetrisEngine.DROP:
+                    ny = Math.min(board.dropHeight(piece, x), y);
+                    break;
+            }
+            if (!board.fits(next, nx, ny)) return false;
+            piece = next;
+            x = nx;
+            y = ny;
+        }
+        return piece.equals(targetPiece) && x==targetX && y==targetY;
+    }
+
+
+    /*
+     * The finesse table for the standard board: for each of the 7
+     * standard pieces where it appears, each rotation, and each x, the
+     * shortest verbs that drop it there on an empty board, and the
+     * heights at which the empty board gets there in fewer. Built the
+     * first time it is used -- see Piece.StandardPieces for the idiom.
+     */
+    private static class StandardFinesse {
+        static final int WIDTH = TetrisEngine.WIDTH;
+        static final int HEIGHT = TetrisEngine.HEIGHT + TetrisEngine.TOP_SPACE;
+
+        // [piece][rotation][x] -> verbs, or null if the rotation can't be at x
+        static final int[][][][] VERBS;
+
+        // [piece][rotation][x] -> bit y set if the empty board
+        // gets there at height y in fewer verbs
+        static final long[][][] SHORTER;
+
+        static {
+            Piece[] pieces = Piece.getPieces();
+            Board empty = new Board(WIDTH, HEIGHT);
+            VERBS = new int[pieces.length][][][];
+            SHORTER = new long[pieces.length][][];
+
+            for (int p = 0; p<pieces.length; p++) {
+                Piece[] rotations = rotations(pieces[p]);
+                int spawnX = (WIDTH - rotations[0].getWidth())/2;
+                int spawnY = HEIGHT - rotations[0].getHeight();
+                int start = spawnY * WIDTH + spawnX;
+
+                int[] parent = new int[rotations.length * HEIGHT * WIDTH];
+                byte[] verbTo = new byte[parent.length];
+                bfs(empty, rotations, spawnX, spawnY, parent, verbTo, null, 0, 0);
+
+                VERBS[p] = new int[rotations.length][WIDTH][];
+                SHORTER[p] = new long[rotations.length][WIDTH];
+                for (int r = 0; r<rotations.length; r++) {
+                    for (int x = 0; x<WIDTH; x++) {
+                        int bottom = (r * HEIGHT) * WIDTH + x;
+                        if (parent[bottom]<0) continue;
+                        VERBS[p][r][x] = path(parent, verbTo, start, bottom);
+
+                        for (int y = 0; y<HEIGHT; y++) {
+                            int state = (r * HEIGHT + y) * WIDTH + x;
+                            if (parent[state]>=0 && distance(parent, start, state) < VERBS[p][r][x].length) {
+                                SHORTER[p][r][x] |= 1L << y;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private static int distance(int[] parent, int start, int state) {
+            int length = 0;
+            for (; state!=start; state = parent[state]) length++;
+            return length;
+        }
+
+        /*
+         * Returns the table's verbs if the board is the standard size,
+         * the piece is a standard one just appeared, and no shorter
+         * series could get to the target; or else null.
+         */
+        static int[] lookup(Board board, Piece piece, int x, int y, Piece targetPiece, int targetX, int targetY) {
+            if (board.getWidth()!=WIDTH || board.getHeight()!=HEIGHT) return null;
+            if (x!=(WIDTH - piece.getWidth())/2 || y!=HEIGHT - piece.getHeight()) return null;
+            if (targetX<0 || targetX>=WIDTH || targetY<0 || targetY>=HEIGHT) return null;
+
+            Piece[] pieces = Piece.getPieces();
+            for (int p = 0; p<pieces.length; p++) {
+                if (pieces[p]!=piece) continue;
+
+                Piece rotation = piece;
+                for (int r = 0; r<VERBS[p].length; r++) {
+                    if (rotation.equals(targetPiece)) {
+                        if ((SHORTER[p][r][targetX] & (1L << targetY))!=0) return null;
+                        return VERBS[p][r][targetX];
+                    }
+                    rotation = rotation.fastRotation();
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package tetris;
 
 import java.awt.Dimension;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JCheckBox;
 import javax.swing.JComponent;
@@ -11,27 +17,74 @@ import javax.swing.JSlider;
 import javax.swing.UIManager;
 
 
+/*
+ * The brain plans each piece's move on a background thread, so a slow
+ * brain never holds up the Swing event thread: as soon as a piece
+ * appears, a copy of the board goes to the planner, and the finished
+ * plan is published through an AtomicReference tagged with the spawn it
+ * belongs to. tick() only ever looks at what is there -- until the plan
+ * for the current piece shows up, the piece just falls.
+ * 
+ * The adversary's pick for the next piece is started by the planner
+ * too, on the board as it will be after the planned move, and runs on
+ * the adversary's own pool while the piece falls; the future for it is
+ * published with the plan. pickNextPiece() takes the pick if it is done
+ * for the piece that just landed, and otherwise deals a random piece
+ * rather than wait. With the brain off, the plan is still made for the
+ * adversary's sake -- it guesses the player will play where the brain
+ * would.
+ */
 @SuppressWarnings("serial")
 public class JBrainTetris extends JTetris{
 	
-	private Brain brain;	//created per the specs
+	private AnytimeBrain brain;	//only used on the planner thread
+	private AdversaryEngine adversaryEngine;	//picks the pieces when the adversary plays, off the event thread
 	private JCheckBox brainMode;
 	private JSlider adversary;
+	private JCheckBox twoAhead;
 	private JPanel little;
 	//private JLabel status;
 	private JCheckBox animateFalling;
 	
-	private Brain.Move move;
-	private int currentCount;
+	/*
+	 * A move worked out for one spawn -- the nth piece to come into play
+	 * since the program started, so a plan from an old game never matches.
+	 */
+	private static class Plan {
+		final int spawn;
+		final Brain.Move move;	// null if the brain found no play
+		final CompletableFuture<Piece> next;	// the adversary's pick after the move, or null if not wanted
+		
+		Plan(int spawn, Brain.Move move, CompletableFuture<Piece> next){
+			this.spawn = spawn;
+			this.move = move;
+			this.next = next;
+		}
+	}
+	
+	private final ExecutorService planner;
+	private final AtomicReference<Plan> plan;
+	private int spawn;			// the current piece's spawn number
+	private int plannedSpawn;	// the last spawn sent to the planner
+	private int steeredSpawn;	// the last spawn whose plan was turned into inputs
 	
 	/*
-	 * Constructor just calls parent class.
+	 * Constructor calls parent class and starts the planner thread.
 	 */
 	public JBrainTetris(int pixels){
 		super(pixels);
-		brain = new DefaultBrain();
-		currentCount = 0;
-		move = new Brain.Move();
+		brain = new AnytimeBrain();
+		// its own pool, so it doesn't hold up other work on the common one
+		adversaryEngine = new AdversaryEngine(new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()-1)));
+		
+		plan = new AtomicReference<Plan>();
+		planner = Executors.newSingleThreadExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "brain planner");
+				thread.setDaemon(true);	//don't keep the program alive
+				return thread;
+			}
+		});
 	}
 	
 	/**
@@ -61,25 +114,50 @@ public class JBrainTetris extends JTetris{
 		
 		panel.add(little);
 		
+		//let the adversary look two pieces ahead
+		twoAhead = new JCheckBox("Adversary looks 2 ahead");
+		panel.add(twoAhead);
+		
 		//status = new JLabel("Ok");
 		//panel.add(status);
 		
 		return panel;
 	}
 	
+	/*
+	 * Gives the brain as long to think as a tick takes, so it searches
+	 * deeper when the game is slow and stays quick when it is fast.
+	 */
+	@Override
+	public void updateTimer(){
+		super.updateTimer();
+		if(brain!=null) brain.setTimeBudget(Math.max(1, timer.getDelay()));
+	}
+	
 	@Override
 	protected void enableButtons(){
-		startButton.setEnabled(!gameOn);
-		stopButton.setEnabled(gameOn);
+		startButton.setEnabled(!engine.isGameOn());
+		stopButton.setEnabled(engine.isGameOn());
+	}
+	
+	/*
+	 * A new game -- move on the spawn count, so nothing planned
+	 * in the last game is taken for the first piece of this one.
+	 */
+	@Override
+	public void startGame(){
+		spawn++;
+		super.startGame();
 	}
 	
 	@Override
 	public Piece pickNextPiece(){
 		int sliderValue = adversary.getValue();
-		int randomNumber = random.nextInt(100);
+		int randomNumber = engine.getRandom().nextInt(100);
 		
 		//if the random number is greater than the slider value, just return a random 
-		//piece. Otherwise, return the worst piece possible given the current board state
+		//piece. Otherwise, return the worst piece possible given the current board state,
+		//if the planner has worked it out for the piece that just landed
 		if(randomNumber>=sliderValue){
 		//	status.setText("Ok");
 			return super.pickNextPiece();
@@ -88,25 +166,9 @@ public class JBrainTetris extends JTetris{
 		else{
 			
 			//status.setText("*Ok*");
-			Piece worstPiece = null;
-			int worstScore = 0;
-			
-			for(int i = 0; i<pieces.length;i++){
-				move = brain.bestMove(board, pieces[i], board.getHeight(), move);
-				
-				if(move==null) continue;
-				else if(worstPiece==null){
-					worstPiece = move.piece;
-					worstScore = (int)move.score;
-				}
-				else if(move.score>worstScore){
-					worstPiece = move.piece;
-					worstScore = (int) move.score;
-				}
-			}
-			
-			if(worstPiece==null) 	return super.pickNextPiece();
-			else			return worstPiece;
+			Plan ready = plan.get();
+			if(ready!=null && ready.spawn==spawn && ready.next!=null && ready.next.isDone()) return ready.next.join();
+			return super.pickNextPiece();
 		}
 		
 		
@@ -114,6 +176,61 @@ public class JBrainTetris extends JTetris{
 	
 	
 	/*
+	 * A new piece is in play -- start planning for it right away.
+	 */
+	@Override
+	protected void pieceAdded(){
+		spawn++;
+		if(brainMode==null) return;
+		if(brainMode.isSelected() || adversary.getValue()>0) requestPlan();
+	}
+	
+	/*
+	 * Sends a copy of the board, without the current piece, to the
+	 * planner, unless this spawn has been sent already. The copy is made
+	 * here on the event thread, which is the only thread that changes
+	 * the real board. The planner plays the move it finds on the copy,
+	 * and starts the adversary's pick for what comes next before
+	 * publishing the plan.
+	 */
+	private void requestPlan(){
+		final Piece piece = engine.getCurrentPiece();
+		if(plannedSpawn == spawn || piece == null || !engine.isGameOn()) return;
+		plannedSpawn = spawn;
+		
+		final Board copy = new Board(engine.getBoard());
+		copy.undo();	//take the current piece out of the copy
+		final int planSpawn = spawn;
+		final boolean pickNext = adversary.getValue()>0;
+		adversaryEngine.setTwoAhead(twoAhead.isSelected());
+		
+		planner.execute(new Runnable(){
+			public void run(){
+				// a fresh move each time, since tick() reads it on another thread
+				Brain.Move planned = brain.bestMove(copy, piece, copy.getHeight(), null);
+				
+				CompletableFuture<Piece> next = null;
+				if(pickNext && planned!=null){
+					int result = copy.place(planned.piece, planned.x, planned.y);
+					if(result==Board.PLACE_ROW_FILLED) copy.clearRows();
+					copy.commit();
+					next = adversaryEngine.worstPieceAsync(copy, copy.getHeight());
+				}
+				plan.set(new Plan(planSpawn, planned, next));
+			}
+		});
+	}
+	
+	/*
+	 * Once the plan for the piece is ready, the first tick(DOWN) turns it
+	 * into the shortest series of inputs with InputPlanner and sends them
+	 * all at once in place of the DOWN, so the piece gets to its spot even
+	 * at top speed -- including tucks under overhangs. With "Animate fall"
+	 * on, a final DROP is left off and the piece falls the rest of the way.
+	 * Never waits for the planner: with no plan for this piece yet,
+	 * the piece just falls.
+	 * 
+	 * If the inputs can't get there, it falls back on the original way:
 	 * "Everytime the system calls tick(DOWN) to move the piece down one, 
 	 * JBrainTetris takes the opportunity to move the piece a bit first. 
 	 * The Brain may do up to one rotation and one left/right move each 
@@ -125,17 +242,22 @@ public class JBrainTetris extends JTetris{
 		
 		if(brainMode.isSelected() && verb == DOWN){
 			
-			if(currentCount != count){
-				currentCount = count;
-				board.undo();
-				move = brain.bestMove(board, currentPiece, board.getHeight(), move);
+			// in case brain mode was turned on after the piece appeared
+			requestPlan();
+			
+			Plan ready = plan.get();
+			Brain.Move planned = (ready!=null && ready.spawn==spawn ? ready.move : null);
+			
+			if(planned!=null && steeredSpawn!=spawn){
+				steeredSpawn = spawn;
+				if(steer(planned)) return;	//the inputs take this tick's place
 			}
 			
-			if(move!=null){
-				if(!currentPiece.equals(move.piece))	tick(ROTATE);
-				else if(move.x>currentX)		tick(RIGHT);
-				else if(move.x<currentX) 		tick(LEFT);
-				else if(!animateFalling.isSelected()&&move.y<currentY){
+			if(planned!=null){
+				if(!engine.getCurrentPiece().equals(planned.piece))	tick(ROTATE);
+				else if(planned.x>engine.getCurrentX())		tick(RIGHT);
+				else if(planned.x<engine.getCurrentX()) 		tick(LEFT);
+				else if(!animateFalling.isSelected()&&planned.y<engine.getCurrentY()){
 					verb = DROP;
 				}
 			}
@@ -144,6 +266,25 @@ public class JBrainTetris extends JTetris{
 		super.tick(verb);
 	}
 	
+	/*
+	 * Sends the inputs that take the current piece to the planned move.
+	 * Returns false, without sending any, if there is no way there.
+	 */
+	private boolean steer(Brain.Move planned){
+		Board board = new Board(engine.getBoard());
+		board.undo();	//plan without the current piece in the way
+		int[] verbs = InputPlanner.plan(board, engine.getCurrentPiece(),
+				engine.getCurrentX(), engine.getCurrentY(), planned);
+		if(verbs==null) return false;
+		
+		int count = verbs.length;
+		if(animateFalling.isSelected() && count>0 && verbs[count-1]==DROP) count--;
+		for(int i = 0; i<count; i++){
+			super.tick(verbs[i]);
+		}
+		return true;
+	}
+	
 	/*
 	 * This is basically a copy of the super classes main method 
 	 * except it creates a JBrainTetris instead of a JTetris.
@@ -0,0 +1,229 @@
+// MoveGenerator.java
+
+package tetris;
+
+/**
+ Finds every place a piece can land when it is steered there by the
+ game's own moves -- LEFT, RIGHT, ROTATE and DOWN as TetrisEngine does
+ them -- from where it starts. Unlike dropping each rotation straight
+ down from the top, this finds slides and spins in under overhangs, and
+ leaves out plays the piece can't actually get to.
+ A piece has landed where a DOWN would not fit.
+
+ <p>
+ Each landing spot is a (rotation, x, y) -- the exact set of cells the
+ piece ends up on, since the rotations of a piece are distinct pieces --
+ and is listed once, however many ways there are to get there.
+ A generator keeps its scratch space between calls, so use one per
+ thread. Typical client code looks like...
+ <pre>
+ MoveGenerator generator = new MoveGenerator();
+ int count = generator.generate(board, piece, startX, startY);
+ for (int i = 0; i&lt;count; i++) {
+ 	... generator.getPiece(i), generator.getX(i), generator.getY(i) ...
+ }
+ </pre>
+*/
+/*
+ Implementation: the search runs on bit masks, one long per rotation
+ per row, with bit x set for each x the piece can be at. For each
+ rotation and row, Board.fitMask() gives where the piece fits; the
+ reachable set starts as the start position and grows:
+ -LEFT/RIGHT: flood each row's set sideways within the fit mask.
+ -DOWN: a row's set, ANDed with the fit mask one row lower.
+ -ROTATE: a row's set, shifted by the rotation's x offset, ANDed with
+ the next rotation's fit mask at the rotation's y offset.
+ Passes over all rotations, top to bottom, repeat until nothing grows.
+ That is a BFS over every (rotation, x, y) state, 64 x's at a time.
+*/
+public class MoveGenerator {
+
+    // scratch space, grown as needed
+    private Piece[] rotations = new Piece[4];
+    private long[][] fit = new long[4][0];
+    private long[][] reach = new long[4][0];
+
+    // the results of the last generate()
+    private Piece[] pieces = new Piece[64];
+    private int[] xs = new int[64];
+    private int[] ys = new int[64];
+    private int count;
+
+
+    /**
+     Finds the landing spots of the piece on the board, starting at
+     (x, y), and returns how many there are; none if the piece doesn't
+     fit at the start. The board should be committed -- in particular
+     the piece itself should not be in it.
+    */
+    public int generate(Board board, Piece piece, int x, int y) {
+        final int height = board.getHeight();
+        count = 0;
+
+        // the rotations, in fastRotation() order from the piece
+        int numRotations = 0;
+        Piece current = piece;
+        do {
+            if (numRotations==rotations.length) grow(numRotations*2);
+            rotations[numRotations++] = current;
+            current = current.fastRotation();
+        } while (current!=piece && current!=null);
+
+        for (int r = 0; r<numRotations; r++) {
+            if (fit[r].length<height) {
+                fit[r] = new long[height];
+                reach[r] = new long[height];
+            }
+            for (int row = 0; row<height; row++) {
+                fit[r][row] = board.fitMask(rotations[r], row);
+                reach[r][row] = 0;
+            }
+        }
+
+        if (x<0 || x>=Board.MAX_WIDTH || y<0 || y>=height) return 0;
+        reach[0][y] = fit[0][y] & (1L << x);
+        if (reach[0][y]==0) return 0;
+
+        search(numRotations, height);
+
+        // landed wherever a DOWN would not fit
+        for (int r = 0; r<numRotations; r++) {
+            long[] fits = fit[r];
+            long[] reached = reach[r];
+            for (int row = 0; row<height; row++) {
+                long landed = reached[row] & ~(row>0 ? fits[row-1] : 0);
+                while (landed!=0) {
+                    add(rotations[r], Long.numberOfTrailingZeros(landed), row);
+                    landed &= landed-1;
+                }
+            }
+        }
+        return count;
+    }
+
+
+    /*
+     * Grows the reachable sets until nothing changes.
+     */
+    private void search(int numRotations, int height) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int r = 0; r<numRotations; r++) {
+                long[] fits = fit[r];
+                long[] reached = reach[r];
+
+                // slide, then fall a row, top to bottom
+                long above = 0;
+                for (int row = height-1; row>=0; row--) {
+                    long next = slide(reached[row] | (above & fits[row]), fits[row]);
+                    if (next!=reached[row]) {
+                        reached[row] = next;
+                        changed = true;
+                    }
+                    above = next;
+                }
+
+                // rotate into the next rotation, offset as TetrisEngine does it
+                int n = (r+1 == numRotations ? 0 : r+1);
+                if (n==r) continue;
+                int dx = TetrisEngine.rotatedX(rotations[r], rotations[n], 0);
+                int dy = TetrisEngine.rotatedY(rotations[r], rotations[n], 0);
+                for (int row = 0; row<height; row++) {
+                    int to = row + dy;
+                    if (reached[row]==0 || to<0 || to>=height) continue;
+                    long moved = (dx>=0 ? reached[row] << dx : reached[row] >>> -dx) & fit[n][to];
+                    if ((moved & ~reach[n][to])!=0) {
+                        reach[n][to] |= moved;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+
+    /*
+     * Extends the positions sideways as far as the fit mask allows --
+     * what any number of LEFTs and RIGHTs can reach.
+     */
+    private static long slide(long positions, long fits) {
+        while (true) {
+            long next = (positions | (positions << 1) | (positions >>> 1)) & fits;
+            if (next==positions) return positions;
+            positions = next;
+        }
+    }
+
+
+    private void add(Piece piece, int x, int y) {
+        if (count==pieces.length) {
+            int size = count*2;
+            Piece[] newPieces = new Piece[size];
+            int[] newXs = new int[size];
+            int[] newYs = new int[size];
+            System.arraycopy(pieces, 0, newPieces, 0, count);
+            System.arraycopy(xs, 0, newXs, 0, count);
+            System.arraycopy(ys, 0, newYs, 0, count);
+            pieces = newPieces;
+            xs = newXs;
+            ys = newYs;
+        }
+        pieces[count] = piece;
+        xs[count] = x;
+        ys[count] = y;
+        count++;
+    }
+
+
+    private void grow(int size) {
+        Piece[] newRotations = new Piece[size];
+        long[][] newFit = new long[size][];
+        long[][] newReach = new long[size][];
+        System.arraycopy(rotations, 0, newRotations, 0, rotations.length);
+        System.arraycopy(fit, 0, newFit, 0, fit.length);
+        System.arraycopy(reach, 0, newReach, 0, reach.length);
+        for (int r = rotations.length; r<size; r++) {
+            newFit[r] = new long[0];
+            newReach[r] = new long[0];
+        }
+        rotations = newRotations;
+        fit = newFit;
+        reach = newReach;
+    }
+
+
+    /**
+     Returns the number of landing spots the last generate() found.
+    */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     Returns the rotation of the piece for the ith landing spot.
+    */
+    public Piece getPiece(int i) {
+        return pieces[i];
+    }
+
+    public int getX(int i) {
+        return xs[i];
+    }
+
+    public int getY(int i) {
+        return ys[i];
+    }
+
+
+    /**
+     Returns whether the last generate() found a landing spot
+     with the given rotation at (x, y).
+    */
+    public boolean contains(Piece piece, int x, int y) {
+        for (int i = 0; i<count; i++) {
+            if (xs[i]==x && ys[i]==y && pieces[i].equals(piece)) return true;
+        }
+        return false;
+    }
+}
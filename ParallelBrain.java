@@ -0,0 +1,157 @@
+// ParallelBrain.java
+
+package tetris;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ A DefaultBrain that rates its candidate plays in parallel.
+ bestMove() lists every (rotation, x) play, splits the list across
+ a ForkJoinPool, and has each worker rate its share on its own copy
+ of the board with rateMove(). The result is exactly the move the
+ sequential DefaultBrain would pick: on a tie in score, the play
+ earlier in rotation-then-x order wins, as it does there.
+ 
+ <p>
+ With fewer than threshold plays (e.g. a standard 10 wide board,
+ with about 10-30 plays) forking costs more than it saves, so
+ bestMove() just runs the sequential version. Subclasses that
+ override rateBoard() get the parallel search too, as long as
+ rateBoard() is safe to call from several threads at once.
+*/
+public class ParallelBrain extends DefaultBrain {
+    
+    /**
+     The default threshold -- the fewest plays worth going parallel for.
+    */
+    public static final int DEFAULT_THRESHOLD = 64;
+    
+    private final ForkJoinPool pool;
+    private final int threshold;
+    
+    
+    /**
+     Creates a brain that uses the common ForkJoinPool
+     and the default threshold.
+    */
+    public ParallelBrain() {
+        this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+    
+    
+    /**
+     Creates a brain that forks onto the given pool once
+     there are at least threshold plays to rate.
+    */
+    public ParallelBrain(ForkJoinPool pool, int threshold) {
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+    
+    
+    /**
+     Same as DefaultBrain.bestMove(), and picks the same move.
+    */
+    public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+        // count the rotations and the plays
+        int rotationCount = 0;
+        int playCount = 0;
+        Piece current = piece;
+        do {
+            rotationCount++;
+            playCount += Math.max(0, board.getWidth() - current.getWidth()+1);
+            current = current.fastRotation();
+        } while (current != piece);
+        
+        if (playCount < threshold) return super.bestMove(board, piece, limitHeight, move);
+        
+        // list the plays in the same order the sequential loop tries them
+        Piece[] plays = new Piece[playCount];
+        int[] xs = new int[playCount];
+        int i = 0;
+        current = piece;
+        for (int r = 0; r<rotationCount; r++) {
+            final int xBound = board.getWidth() - current.getWidth()+1;
+            for (int x = 0; x<xBound; x++) {
+                plays[i] = current;
+                xs[i] = x;
+                i++;
+            }
+            current = current.fastRotation();
+        }
+        
+        board.commit();
+        int leafSize = Math.max(1, playCount / (4*pool.getParallelism()));
+        Best best = pool.invoke(new RateTask(board, plays, xs, 0, playCount, leafSize, limitHeight));
+        
+        if (best.index < 0) return(null);    // could not find a play at all!
+        
+        if (move==null) move = new Brain.Move();
+        move.piece = plays[best.index];
+        move.x = xs[best.index];
+        move.y = board.dropHeight(move.piece, move.x);
+        move.score = best.score;
+        return(move);
+    }
+    
+    
+    // The best play found in a range -- index -1 if there was none.
+    private static class Best {
+        double score = 1e20;    // same starting bar as DefaultBrain
+        int index = -1;
+    }
+    
+    
+    /*
+     Rates the plays in [start, end). Splits the range in half until it
+     is at most leafSize, then rates the leaf on a private copy of the board.
+     Merging keeps the lower score, and the lower index on a tie.
+    */
+    @SuppressWarnings("serial")
+    private class RateTask extends RecursiveTask<Best> {
+        private final Board board;
+        private final Piece[] plays;
+        private final int[] xs;
+        private final int start;
+        private final int end;
+        private final int leafSize;
+        private final int limitHeight;
+        
+        RateTask(Board board, Piece[] plays, int[] xs, int start, int end, int leafSize, int limitHeight) {
+            this.board = board;
+            this.plays = plays;
+            this.xs = xs;
+            this.start = start;
+            this.end = end;
+            this.leafSize = leafSize;
+            this.limitHeight = limitHeight;
+        }
+        
+        protected Best compute() {
+            if (end - start <= leafSize) {
+                Board copy = new Board(board);
+                Best best = new Best();
+                for (int i = start; i<end; i++) {
+                    double score = rateMove(copy, plays[i], xs[i], limitHeight);
+                    if (score < best.score) {
+                        best.score = score;
+                        best.index = i;
+                    }
+                }
+                return best;
+            }
+            
+            int middle = (start + end) >>> 1;
+            RateTask low = new RateTask(board, plays, xs, start, middle, leafSize, limitHeight);
+            RateTask high = new RateTask(board, plays, xs, middle, end, leafSize, limitHeight);
+            high.fork();
+            Best lowBest = low.compute();
+            Best highBest = high.join();
+            
+            // strictly better only, so the earlier play wins a tie
+            if (highBest.index >= 0 && (lowBest.index < 0 || highBest.score < lowBest.score)) return highBest;
+            return lowBest;
+        }
+    }
+}
@@ -17,28 +17,43 @@ import java.util.*;
  Piece stick = pieces[STICK];
  int width = stick.getWidth();		// get its width
  Piece stick2 = stick.fastRotation();	// get the next rotation, fast way
+ int id = stick2.getId();			// small id, see PieceRegistry
+ Piece same = Piece.fromId(id);		// and back again
  </pre>
 */
 public class Piece {
 	// Starter code specs out a few basic things, leaving
 	// the algorithms to be done.
-	private TPoint[] body;
-	private int[] skirt;		//the skirt is as many elements as the piece is wide
+	private final TPoint[] body;
+	private final int[] skirt;		//the skirt is as many elements as the piece is wide
 								//that is, the skirt stores the lowest y-value that 
 								//appears in the body for each x value in the piece.
 								//the x values are the index into the array.
-	private int width;
-	private int height;
+	private final long[] rowMasks;	//one bit mask per row of the piece -- bit x is set
+								//if the body has a block at (x, y). Used by Board
+								//to place and collide a whole row at once.
+	private final int[] tops;	//the top profile -- for each x value, the highest
+								//y-value in the body plus one. The skirt is the bottom profile.
+	private final int[] columnBlocks;	//the number of blocks in each column of the piece
+	private final int width;
+	private final int height;
+	private final int bodyHash;	// hashCode(), which only depends on the set of body points
 	private Piece next; // "next" rotation
+	private int id = -1;	// set by PieceRegistry when the piece is interned
 
-	static private Piece[] pieces;	// singleton static array of first rotations
+	// For each board width, a mask of the x values where the piece is in bounds.
+	// Index 0 is unused; widths go up to Board.MAX_WIDTH.
+	private final long[] validXMasks;
 
 	/**
 	 Defines a new piece given a TPoint[] array of its body.
 	 Makes its own copy of the array and the TPoints inside it.
 	*/
 	public Piece(TPoint[] points) {
-		body = points;
+		body = new TPoint[points.length];
+		for(int i = 0; i<points.length;i++){
+			body[i] = new TPoint(points[i]);
+		}
 		
 		int heightFinder =0;
 		int widthFinder = 0;
@@ -66,6 +81,26 @@ public class Piece {
 			if(t.y<skirt[t.x]) skirt[t.x] = t.y;
 		}
 		
+		//the row masks are just the body folded into one long per row
+		rowMasks = new long[height];
+		tops = new int[width];
+		columnBlocks = new int[width];
+		int hash = 0;
+		for(TPoint t: body){
+			rowMasks[t.y] |= 1L << t.x;
+			if(t.y+1>tops[t.x]) tops[t.x] = t.y+1;
+			columnBlocks[t.x]++;
+			hash += 31*t.x + t.y*1009;	// a sum, so the point order doesn't matter
+		}
+		bodyHash = hash;
+		
+		//x can go from 0 up to boardWidth-width
+		validXMasks = new long[Board.MAX_WIDTH+1];
+		for(int boardWidth = width; boardWidth<=Board.MAX_WIDTH;boardWidth++){
+			int positions = boardWidth - width + 1;
+			validXMasks[boardWidth] = (positions==64) ? -1L : (1L << positions) - 1;
+		}
+		
  	}
 	
 
@@ -111,6 +146,45 @@ public class Piece {
 	public int[] getSkirt() {
 		return skirt;
 	}
+	
+	/**
+	 Returns a pointer to the piece's row masks. For each y value
+	 up the piece, bit x of the mask is set if the body has a block
+	 at (x, y). Board shifts these left by the placement x to collide
+	 and place a whole row at once.
+	 The caller should not modify this array.
+	*/
+	public long[] getRowMasks() {
+		return rowMasks;
+	}
+	
+	/**
+	 Returns a pointer to the piece's top profile. For each x value
+	 across the piece, this gives the highest y value in the body plus one
+	 -- the height the piece adds to that column, counting from its bottom.
+	 The caller should not modify this array.
+	*/
+	public int[] getTopProfile() {
+		return tops;
+	}
+	
+	/**
+	 Returns a pointer to the number of blocks the piece has
+	 in each x value across it.
+	 The caller should not modify this array.
+	*/
+	public int[] getColumnBlocks() {
+		return columnBlocks;
+	}
+	
+	/**
+	 Returns a mask of the x values at which the piece is inside
+	 a board of the given width -- bit x is set for x from 0 to
+	 boardWidth-getWidth(). Returns 0 if the piece is too wide.
+	*/
+	public long getValidXMask(int boardWidth) {
+		return validXMasks[boardWidth];
+	}
 
 	
 	/**
@@ -177,26 +251,27 @@ public class Piece {
 		return oldArray;
 	}
 	
+	/*
+	 * Shifts the matrix down until something is in its bottom row.
+	 * A loop rather than recursion, so larger pieces can't run deep.
+	 */
 	private static void dropDown(boolean[][] array){
-		for(int i = 0; i<array.length;i++){
-			if(array[i][0]==true) return;
-		}
-		
-		for(int i =0; i<array.length; i++){
-			for(int j =0; j<array[0].length;j++){
-				if(j<(array[0].length-1)){
-					array[i][j] = array[i][j+1];
-				}
-				else{
-					array[i][j] =false;
-				}
+		for(int shifts = 0; shifts<array[0].length;shifts++){
+			for(int i = 0; i<array.length;i++){
+				if(array[i][0]==true) return;
 			}
-		}
-		for(int j =0; j<array[0].length;j++){
-				for(int i = 0; i<array.length;i++){
+			
+			for(int i =0; i<array.length; i++){
+				for(int j =0; j<array[0].length;j++){
+					if(j<(array[0].length-1)){
+						array[i][j] = array[i][j+1];
+					}
+					else{
+						array[i][j] =false;
+					}
+				}
 			}
 		}
-		dropDown(array);
 		
 	}
 	
@@ -275,6 +350,7 @@ public class Piece {
 	 same body arrays, since the points may not be
 	 in the same order in the bodies. Used internally to detect
 	 if two rotations are effectively the same.
+	 Interned pieces (see PieceRegistry) just compare their ids.
 	*/
 	public boolean equals(Object obj) {
 		// standard equals() technique 1
@@ -285,7 +361,11 @@ public class Piece {
 		if (!(obj instanceof Piece)) return false;
 		Piece other = (Piece)obj;
 		
+		// interned pieces with the same body always have the same id
+		if (id>=0 && other.id>=0) return id==other.id;
+		
 		TPoint[] otherArray = other.getBody();
+		if (otherArray.length!=body.length || other.bodyHash!=bodyHash) return false;
 		
 		for(int i = 0; i<body.length;i++){
 			if(contains(otherArray, body[i])==false) return false;
@@ -300,6 +380,39 @@ public class Piece {
 		}
 		return false;
 	}
+	
+	/**
+	 Returns a hash code consistent with equals() --
+	 it depends only on the set of body points.
+	*/
+	public int hashCode() {
+		return bodyHash;
+	}
+	
+	
+	/**
+	 Returns the piece's id in the PieceRegistry -- a small
+	 int, the same for every piece with the same body --
+	 or -1 if the piece has not been interned.
+	*/
+	public int getId() {
+		return id;
+	}
+	
+	/*
+	 * Called by PieceRegistry when it interns the piece.
+	 */
+	void setId(int id) {
+		this.id = id;
+	}
+	
+	/**
+	 Returns the interned piece with the given id.
+	 Same as PieceRegistry.get(id).
+	*/
+	public static Piece fromId(int id) {
+		return PieceRegistry.get(id);
+	}
 
 
 	// String constants for the standard 7 tetris pieces
@@ -331,22 +444,26 @@ public class Piece {
 	 (provided code)
 	*/
 	public static Piece[] getPieces() {
-		// lazy evaluation -- create static array if needed
-		if (Piece.pieces==null) {
-			// use makeFastRotations() to compute all the rotations for each piece
-			Piece.pieces = new Piece[] {
-				makeFastRotations(new Piece(STICK_STR)),
-				makeFastRotations(new Piece(L1_STR)),
-				makeFastRotations(new Piece(L2_STR)),
-				makeFastRotations(new Piece(S1_STR)),
-				makeFastRotations(new Piece(S2_STR)),
-				makeFastRotations(new Piece(SQUARE_STR)),
-				makeFastRotations(new Piece(PYRAMID_STR)),
-			};
-		}
-		
-		
-		return Piece.pieces;
+		return StandardPieces.PIECES;
+	}
+	
+	/*
+	 * Holds the singleton array of first rotations. The JVM initializes this
+	 * class the first time getPieces() runs, exactly once even if several
+	 * threads get there together, and makes the whole piece structure
+	 * visible to all of them -- so the lazy init is thread-safe for free.
+	 */
+	private static class StandardPieces {
+		// use makeFastRotations() to compute all the rotations for each piece
+		static final Piece[] PIECES = new Piece[] {
+			makeFastRotations(new Piece(STICK_STR)),
+			makeFastRotations(new Piece(L1_STR)),
+			makeFastRotations(new Piece(L2_STR)),
+			makeFastRotations(new Piece(S1_STR)),
+			makeFastRotations(new Piece(S2_STR)),
+			makeFastRotations(new Piece(SQUARE_STR)),
+			makeFastRotations(new Piece(PYRAMID_STR)),
+		};
 	}
 	
 
@@ -356,29 +473,43 @@ public class Piece {
 	 the other rotations and links them all together
 	 in a circular list. The list loops back to the root as soon
 	 as possible. Returns the root piece. fastRotation() relies on the
-	 pointer structure setup here.
+	 pointer structure setup here. Every rotation is interned
+	 in the PieceRegistry, so it gets an id.
 	*/
 	/*
-	 Implementation: uses computeNextRotation()
+	 Implementation: uses computeNextRotation() once per rotation
 	 and Piece.equals() to detect when the rotations have gotten us back
 	 to the first piece.
 	*/
-	private static Piece makeFastRotations(Piece root) {
-		Piece rotation = root.computeNextRotation();
-		root.next = rotation;
+	static Piece makeFastRotations(Piece root) {
+		Piece rotation = root;
 		while(true){
-			if(rotation.computeNextRotation().equals(root)) {
+			Piece nextRotation = rotation.computeNextRotation();
+			if(nextRotation.equals(root)) {
 				rotation.next = root; 
 				break;
 			}
-			rotation.next = rotation.computeNextRotation();
-			rotation = rotation.next;
+			rotation.next = nextRotation;
+			rotation = nextRotation;
 		}
 		
-		return root;
+		return PieceRegistry.intern(root);
 		
 	}
 	
+	/**
+	 Links already-computed rotations together in a circular list,
+	 in the given order, and interns them. Returns the first one.
+	 Used to load a piece set whose rotations were saved to disk,
+	 so they need not be computed again -- see Polyominoes.
+	*/
+	static Piece linkRotations(Piece[] rotations) {
+		for(int i = 0; i<rotations.length;i++){
+			rotations[i].next = rotations[(i+1) % rotations.length];
+		}
+		return PieceRegistry.intern(rotations[0]);
+	}
+	
 	
 
 	/**
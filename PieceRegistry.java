@@ -0,0 +1,98 @@
+// PieceRegistry.java
+package tetris;
+
+import java.util.*;
+
+/**
+ Interns every (shape, rotation) as a small int id, so
+ boards, moves and replay logs can refer to a piece by number,
+ and Piece.equals() is just an id compare.
+ Pieces with the same body always get the same id.
+ Ids are handed out from 0 in the order pieces are interned.
+ The standard 7 pieces have 19 rotations between them, so
+ they and any other set of up to 256 rotations fit a byte per piece.
+ 
+ <p>
+ Piece.makeFastRotations() interns every piece set, so clients
+ normally only need get().
+*/
+/*
+ Implementation: intern() is synchronized, and publishes a new copy of
+ the id table through a volatile field, so get() never takes a lock.
+*/
+public final class PieceRegistry {
+	
+	private static final Map<String, Integer> idsByBody = new HashMap<String, Integer>();
+	private static volatile Piece[] piecesById = new Piece[0];
+	
+	private PieceRegistry() {
+	}
+	
+	
+	/**
+	 Gives every rotation in the circular list starting at root
+	 an id, reusing the id of any piece already interned with the
+	 same body. Returns the root.
+	*/
+	public static synchronized Piece intern(Piece root) {
+		List<Piece> added = new ArrayList<Piece>();
+		
+		Piece rotation = root;
+		do {
+			if (rotation.getId()<0) {
+				String key = bodyKey(rotation);
+				Integer id = idsByBody.get(key);
+				if (id==null) {
+					id = piecesById.length + added.size();
+					idsByBody.put(key, id);
+					added.add(rotation);
+				}
+				rotation.setId(id);
+			}
+			rotation = rotation.fastRotation();
+		} while (rotation!=null && rotation!=root);
+		
+		if (!added.isEmpty()) {
+			Piece[] grown = Arrays.copyOf(piecesById, piecesById.length + added.size());
+			for (int i = 0; i<added.size(); i++) {
+				grown[piecesById.length + i] = added.get(i);
+			}
+			piecesById = grown;
+		}
+		return root;
+	}
+	
+	
+	/**
+	 Returns the interned piece with the given id. Its
+	 fastRotation() links are set up.
+	*/
+	public static Piece get(int id) {
+		Piece[] table = piecesById;
+		if (id<0 || id>=table.length) throw new RuntimeException("No piece with id " + id);
+		return table[id];
+	}
+	
+	
+	/**
+	 Returns the number of ids handed out so far.
+	*/
+	public static int size() {
+		return piecesById.length;
+	}
+	
+	
+	/*
+	 * A key that is the same for any two bodies with the same points,
+	 * whatever their order: the points sorted, as a String.
+	 */
+	private static String bodyKey(Piece piece) {
+		TPoint[] body = piece.getBody();
+		long[] packed = new long[body.length];
+		for (int i = 0; i<body.length; i++) {
+			packed[i] = ((long)body[i].x << 32) | body[i].y;
+		}
+		Arrays.sort(packed);
+		return Arrays.toString(packed);
+	}
+}
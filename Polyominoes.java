@@ -0,0 +1,343 @@
+// Polyominoes.java
+package tetris;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ Generates piece sets of polyominoes -- shapes made of n blocks
+ joined edge to edge -- for variants beyond the standard 7 pieces.
+ 
+ <p>
+ fixed(n) enumerates every fixed n-omino, where each rotation and
+ mirror image counts as its own shape. getPieces() turns the shapes
+ of a range of sizes into root pieces with their rotations linked up,
+ just like Piece.getPieces(): one per one-sided polyomino (mirror
+ images are different pieces -- the game's own rule, giving the 7
+ standard pieces for size 4 and 18 pieces for size 5), or one per
+ free polyomino (mirror images merged -- 12 pieces for size 5).
+ 
+ Typical client code looks like...
+ <pre>
+ Piece[] pentominoes = Polyominoes.getPieces(5, 5, false);	// 18 pieces
+ Piece[] cached = Polyominoes.getPieces(5, 5, false, new File("pento.pcs"));
+ </pre>
+ 
+ <p>
+ Computing the rotations of a big set is the slow part, so every set
+ is cached in memory once made, and can also be cached in a compact
+ file: save() writes every rotation of every piece, and load() links
+ them up again without computing any rotations.
+*/
+public class Polyominoes {
+	
+	// on-disk format: MAGIC, VERSION, then the set's minSize, maxSize and
+	// free flag, the piece count (an int), and for each piece its rotation
+	// count and for each rotation its block count and one byte per block
+	// (x<<4 | y), then a CRC32 of all that
+	private static final int MAGIC = 0x54504353;	// "TPCS"
+	private static final int VERSION = 2;	// 1 had a 16 bit piece count and no CRC
+	
+	/**
+	 The largest polyomino supported -- every block of the saved
+	 form has to fit 4 bits of x and 4 bits of y.
+	*/
+	public static final int MAX_SIZE = 16;
+	
+	private static final Map<String, Piece[]> cache = new HashMap<String, Piece[]>();
+	
+	
+	/**
+	 Returns every fixed polyomino of the given size, each one
+	 moved so its lowest x and y are 0, in a stable order.
+	*/
+	/*
+	 Implementation: grows each shape of size n-1 by one block in every
+	 free spot next to it, and keeps the new shapes not seen before.
+	*/
+	public static List<TPoint[]> fixed(int size) {
+		if (size<1 || size>MAX_SIZE) throw new RuntimeException("Bad polyomino size " + size);
+		
+		Map<String, TPoint[]> shapes = new TreeMap<String, TPoint[]>();
+		TPoint[] monomino = new TPoint[] { new TPoint(0, 0) };
+		shapes.put(key(monomino), monomino);
+		
+		int[] dx = { 1, -1, 0, 0 };
+		int[] dy = { 0, 0, 1, -1 };
+		
+		for (int n = 2; n<=size; n++) {
+			Map<String, TPoint[]> grown = new TreeMap<String, TPoint[]>();
+			for (TPoint[] shape : shapes.values()) {
+				for (TPoint block : shape) {
+					for (int d = 0; d<4; d++) {
+						TPoint added = new TPoint(block.x+dx[d], block.y+dy[d]);
+						if (contains(shape, added)) continue;
+						
+						TPoint[] bigger = Arrays.copyOf(shape, n);
+						bigger[n-1] = added;
+						bigger = normalize(bigger);
+						
+						String k = key(bigger);
+						if (!grown.containsKey(k)) grown.put(k, bigger);
+					}
+				}
+			}
+			shapes = grown;
+		}
+		
+		return new ArrayList<TPoint[]>(shapes.values());
+	}
+	
+	
+	/**
+	 Returns the root pieces for every polyomino from minSize to
+	 maxSize blocks -- one per free polyomino if free is true, or
+	 one per one-sided polyomino otherwise -- with their rotations
+	 set up for fastRotation(). The same set is only made once.
+	*/
+	public static Piece[] getPieces(int minSize, int maxSize, boolean free) {
+		String setKey = minSize + "-" + maxSize + (free ? "-free" : "-one-sided");
+		synchronized (cache) {
+			Piece[] pieces = cache.get(setKey);
+			if (pieces==null) {
+				pieces = generate(minSize, maxSize, free);
+				cache.put(setKey, pieces);
+			}
+			return pieces;
+		}
+	}
+	
+	
+	/**
+	 Same as getPieces(minSize, maxSize, free), but also keeps the
+	 set in the given file: loads it from there if the file holds
+	 that set, or else generates it and saves it there.
+	 A file that can't be read or written, or is corrupt,
+	 is just ignored -- the set is generated again.
+	*/
+	public static Piece[] getPieces(int minSize, int maxSize, boolean free, File file) {
+		String setKey = minSize + "-" + maxSize + (free ? "-free" : "-one-sided");
+		synchronized (cache) {
+			Piece[] pieces = cache.get(setKey);
+			if (pieces!=null) return pieces;
+			
+			if (file.exists()) {
+				try {
+					pieces = load(file, minSize, maxSize, free);
+				}
+				catch (IOException e) {
+					System.err.println("Could not load piece set " + file + ": " + e.getMessage());
+				}
+			}
+			
+			if (pieces==null) {
+				pieces = generate(minSize, maxSize, free);
+				try {
+					save(file, pieces, minSize, maxSize, free);
+				}
+				catch (IOException e) {
+					System.err.println("Could not save piece set " + file + ": " + e.getMessage());
+				}
+			}
+			
+			cache.put(setKey, pieces);
+			return pieces;
+		}
+	}
+	
+	
+	/**
+	 Writes every rotation of the given root pieces to the file,
+	 tagged with the sizes and kind of set they are.
+	*/
+	public static void save(File file, Piece[] pieces, int minSize, int maxSize, boolean free) throws IOException {
+		CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(file)), new CRC32());
+		DataOutputStream out = new DataOutputStream(checked);
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeByte(minSize);
+			out.writeByte(maxSize);
+			out.writeBoolean(free);
+			out.writeInt(pieces.length);
+			
+			for (Piece root : pieces) {
+				int count = 0;
+				Piece rotation = root;
+				do {
+					count++;
+					rotation = rotation.fastRotation();
+				} while (rotation!=root);
+				out.writeByte(count);
+				
+				do {
+					TPoint[] body = rotation.getBody();
+					out.writeByte(body.length);
+					for (TPoint block : body) {
+						out.writeByte((block.x << 4) | block.y);
+					}
+					rotation = rotation.fastRotation();
+				} while (rotation!=root);
+			}
+			out.writeInt((int)checked.getChecksum().getValue());
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	
+	/**
+	 Reads root pieces written by save(), linking up the saved
+	 rotations without computing them. Returns null if the file
+	 holds some other set. Throws IOException if the file is not
+	 a piece set file, or is truncated or corrupt.
+	*/
+	public static Piece[] load(File file, int minSize, int maxSize, boolean free) throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+		DataInputStream in = new DataInputStream(checked);
+		try {
+			if (in.readInt()!=MAGIC || in.readByte()!=VERSION) throw new IOException("Not a piece set file");
+			if (in.readByte()!=minSize || in.readByte()!=maxSize || in.readBoolean()!=free) return null;
+			
+			// every piece takes at least a byte, so a bigger count is corrupt
+			int count = in.readInt();
+			if (count<1 || count>file.length()) throw new IOException("Bad piece count " + count);
+			
+			Piece[] pieces = new Piece[count];
+			for (int i = 0; i<pieces.length; i++) {
+				int numRotations = in.readUnsignedByte();
+				if (numRotations!=1 && numRotations!=2 && numRotations!=4) throw new IOException("Bad rotation count " + numRotations);
+				
+				Piece[] rotations = new Piece[numRotations];
+				int size = 0;
+				for (int r = 0; r<rotations.length; r++) {
+					int blocks = in.readUnsignedByte();
+					if (blocks<minSize || blocks>maxSize || (r>0 && blocks!=size)) throw new IOException("Bad block count " + blocks);
+					size = blocks;
+					
+					TPoint[] body = new TPoint[blocks];
+					for (int b = 0; b<body.length; b++) {
+						int packed = in.readUnsignedByte();
+						body[b] = new TPoint(packed >> 4, packed & 0xF);
+					}
+					rotations[r] = new Piece(body);
+				}
+				pieces[i] = Piece.linkRotations(rotations);
+			}
+			int crc = (int)checked.getChecksum().getValue();
+			if (in.readInt()!=crc) throw new IOException("Bad checksum");
+			if (in.read()!=-1) throw new IOException("Extra data after the pieces");
+			return pieces;
+		}
+		catch (RuntimeException e) {
+			// e.g. a body Piece can't make sense of
+			throw new IOException("Corrupt piece set: " + e, e);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	
+	/*
+	 * Makes a piece set from scratch: picks one shape per class of fixed
+	 * shapes that are the same up to rotation (and reflection, if free),
+	 * and lets makeFastRotations() compute its rotations.
+	 */
+	private static Piece[] generate(int minSize, int maxSize, boolean free) {
+		if (minSize<1 || maxSize>MAX_SIZE || minSize>maxSize) throw new RuntimeException("Bad polyomino sizes " + minSize + " to " + maxSize);
+		
+		List<Piece> pieces = new ArrayList<Piece>();
+		for (int n = minSize; n<=maxSize; n++) {
+			Set<String> classes = new HashSet<String>();
+			for (TPoint[] shape : fixed(n)) {
+				if (classes.add(canonicalKey(shape, free))) {
+					pieces.add(Piece.makeFastRotations(new Piece(shape)));
+				}
+			}
+		}
+		return pieces.toArray(new Piece[0]);
+	}
+	
+	
+	/*
+	 * The smallest key among the shape's rotations, and its mirror
+	 * image's rotations too if free -- the same for every shape in its class.
+	 */
+	private static String canonicalKey(TPoint[] shape, boolean free) {
+		String best = null;
+		TPoint[] current = shape;
+		for (int mirror = 0; mirror<(free ? 2 : 1); mirror++) {
+			for (int r = 0; r<4; r++) {
+				String k = key(current);
+				if (best==null || k.compareTo(best)<0) best = k;
+				current = rotate(current);
+			}
+			current = reflect(current);
+		}
+		return best;
+	}
+	
+	
+	// Rotates a shape 90 degrees counter-clockwise.
+	private static TPoint[] rotate(TPoint[] shape) {
+		TPoint[] rotated = new TPoint[shape.length];
+		for (int i = 0; i<shape.length; i++) {
+			rotated[i] = new TPoint(-shape[i].y, shape[i].x);
+		}
+		return normalize(rotated);
+	}
+	
+	
+	// Mirrors a shape left to right.
+	private static TPoint[] reflect(TPoint[] shape) {
+		TPoint[] reflected = new TPoint[shape.length];
+		for (int i = 0; i<shape.length; i++) {
+			reflected[i] = new TPoint(-shape[i].x, shape[i].y);
+		}
+		return normalize(reflected);
+	}
+	
+	
+	// Moves a shape so its lowest x and y are 0, and sorts its blocks.
+	private static TPoint[] normalize(TPoint[] shape) {
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		for (TPoint block : shape) {
+			if (block.x<minX) minX = block.x;
+			if (block.y<minY) minY = block.y;
+		}
+		
+		TPoint[] moved = new TPoint[shape.length];
+		for (int i = 0; i<shape.length; i++) {
+			moved[i] = new TPoint(shape[i].x-minX, shape[i].y-minY);
+		}
+		Arrays.sort(moved, new Comparator<TPoint>() {
+			public int compare(TPoint a, TPoint b) {
+				if (a.y!=b.y) return a.y - b.y;
+				return a.x - b.x;
+			}
+		});
+		return moved;
+	}
+	
+	
+	// A String that is the same for two normalized shapes with the same blocks.
+	private static String key(TPoint[] normalized) {
+		StringBuilder buff = new StringBuilder();
+		for (TPoint block : normalized) {
+			buff.append(block.x).append(',').append(block.y).append(' ');
+		}
+		return buff.toString();
+	}
+	
+	
+	private static boolean contains(TPoint[] shape, TPoint point) {
+		for (TPoint block : shape) {
+			if (block.equals(point)) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,60 @@
+// ReachableBrain.java
+
+package tetris;
+
+/**
+ A DefaultBrain that only considers plays the piece can actually be
+ steered to from where it appears at the top of the board, including
+ slides and spins in under overhangs -- see MoveGenerator. DefaultBrain
+ only drops each rotation straight down, which misses those plays and
+ can pick one that is blocked off on the way down.
+ Rates the boards with rateBoard(), so subclasses can override it as
+ with DefaultBrain.
+*/
+public class ReachableBrain extends DefaultBrain {
+
+    private final MoveGenerator generator = new MoveGenerator();
+
+
+    /**
+     Given a piece and a board, returns a move object that represents
+     the best reachable play for that piece, starting from the top
+     center where TetrisEngine puts new pieces, or returns null if no
+     play is possible. See the Brain interface for details.
+    */
+    @Override
+    public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+        int x = (board.getWidth() - piece.getWidth())/2;
+        int y = board.getHeight() - piece.getHeight();
+        return bestMove(board, piece, x, y, limitHeight, move);
+    }
+
+
+    /**
+     Same as bestMove(), but for the piece starting at (x, y) --
+     e.g. where it has fallen to already.
+    */
+    public Brain.Move bestMove(Board board, Piece piece, int x, int y, int limitHeight, Brain.Move move) {
+        board.commit();
+
+        double bestScore = 1e20;
+        int bestIndex = -1;
+        int count = generator.generate(board, piece, x, y);
+        for (int i = 0; i<count; i++) {
+            double score = ratePlacement(board, generator.getPiece(i), generator.getX(i), generator.getY(i), limitHeight);
+            if (score<bestScore) {
+                bestScore = score;
+                bestIndex = i;
+            }
+        }
+
+        if (bestIndex<0) return(null);    // could not find a play at all!
+
+        if (move==null) move = new Brain.Move();
+        move.x = generator.getX(bestIndex);
+        move.y = generator.getY(bestIndex);
+        move.piece = generator.getPiece(bestIndex);
+        move.score = bestScore;
+        return(move);
+    }
+}
@@ -0,0 +1,526 @@
+// TetrisEngine.java
+package tetris;
+
+import java.util.Random;
+
+/**
+ The rules of the game, with no GUI.
+ TetrisEngine owns the board and the falling piece: it spawns pieces,
+ moves them for the verbs LEFT RIGHT ROTATE DROP DOWN, detects when a
+ piece has landed, clears rows, keeps score, and ends the game.
+ JTetris drives one from its Swing timer and key handlers and draws it;
+ a server can drive one directly, as fast as it likes.
+ 
+ Clearing 1-4 rows scores 5, 10, 20, 40 points, and each new piece
+ scores 1.
+ 
+ Typical headless client code looks like...
+ <pre>
+ TetrisEngine engine = new TetrisEngine(TetrisEngine.WIDTH, TetrisEngine.HEIGHT, TetrisEngine.TOP_SPACE);
+ engine.startGame(new Random(seed));
+ Brain brain = new DefaultBrain();
+ while (engine.isGameOn()) {
+ 	engine.playBrainMove(brain);	// a whole piece per call
+ }
+ int score = engine.getScore();
+ </pre>
+*/
+/*
+ Implementation notes:
+ -The "currentPiece" points to a piece that is
+ currently falling, or is null when there is no piece.
+ -tick() moves the current piece
+ -Board.undo() is used to remove the piece from its
+ old position and then Board.place() is used to install
+ the piece in its new position.
+ -A Listener hears about every change, so a GUI can repaint
+ just what changed. It is optional.
+*/
+public class TetrisEngine {
+	
+	// size of the standard board in blocks
+	public static final int WIDTH = 10;
+	public static final int HEIGHT = 20;
+	
+	// Extra blocks at the top of the standard board for pieces to start.
+	// If a piece is sticking up into this area
+	// when it has landed -- game over!
+	public static final int TOP_SPACE = 4;
+	
+	public static final int ROTATE = 0;
+	public static final int LEFT = 1;
+	public static final int RIGHT = 2;
+	public static final int DROP = 3;
+	public static final int DOWN = 4;
+	
+	/**
+	 Hears about the changes the engine makes, e.g. to repaint.
+	 All calls happen on the thread that called into the engine.
+	*/
+	public interface Listener {
+		// The current piece moved from the old position to the new one,
+		// or was put back where it was after a move that didn't work.
+		// oldPiece is null if there was no piece before.
+		void pieceMoved(Piece oldPiece, int oldX, int oldY, Piece newPiece, int newX, int newY);
+		
+		// A move filled a row all the way across -- it will be cleared once the piece lands.
+		void rowsFilled();
+		
+		// The landed piece cleared this many rows.
+		void rowsCleared(int cleared);
+		
+		// A new piece was added, so the count and score changed.
+		void pieceAdded();
+		
+		// The game ended by the rules -- the board topped out or the piece limit was hit.
+		void gameOver();
+	}
+	
+	// size of the board in blocks, not counting the space at the top
+	private final int width;
+	private final int height;
+	
+	// Extra blocks at the top for pieces to start.
+	// If a piece is sticking up into this area
+	// when it has landed -- game over!
+	private final int topSpace;
+	
+	private Board board;
+	private Piece[] pieces;
+	private Listener listener;
+	
+	// The current piece in play or null
+	private Piece currentPiece;
+	private int currentX;
+	private int currentY;
+	private boolean moved;	// did the player move the piece
+	
+	// The piece we're thinking about playing
+	// -- set by computeNewPosition
+	private Piece newPiece;
+	private int newX;
+	private int newY;
+	
+	// State of the game
+	private boolean gameOn;		// true if we are playing
+	private int count;			// how many pieces played so far
+	private int score;
+	private int linesCleared;
+	private int pieceLimit;		// stop after this many pieces, or 0 for no limit
+	private Random random;		// the random generator for new pieces
+	
+	
+	/**
+	 Creates an engine for a board of the given size, plus
+	 topSpace rows above it for new pieces, using the 7
+	 standard pieces.
+	*/
+	public TetrisEngine(int width, int height, int topSpace) {
+		this.width = width;
+		this.height = height;
+		this.topSpace = topSpace;
+		pieces = Piece.getPieces();
+		board = new Board(width, height + topSpace);
+		random = new Random();
+	}
+	
+	
+	/**
+	 Sets the listener to hear about changes, or null for none.
+	*/
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	
+	/**
+	 Sets the root pieces that new pieces are picked from --
+	 e.g. a set from Polyominoes. Takes effect at the next piece.
+	*/
+	public void setPieces(Piece[] pieces) {
+		this.pieces = pieces;
+	}
+	
+	
+	/**
+	 Sets the number of pieces after which the game stops,
+	 or 0 for no limit. Takes effect at the next startGame().
+	*/
+	public void setPieceLimit(int pieceLimit) {
+		this.pieceLimit = pieceLimit;
+	}
+	
+	
+	/**
+	 Starts a new game on an empty board, picking pieces
+	 with the given random generator.
+	*/
+	public void startGame(Random random) {
+		// cheap way to reset the board state
+		board = new Board(width, height + topSpace);
+		this.random = random;
+		
+		currentPiece = null;
+		count = 0;
+		score = 0;
+		linesCleared = 0;
+		gameOn = true;
+		
+		addNewPiece();
+	}
+	
+	
+	/**
+	 Stops the game. Does not call the listener.
+	*/
+	public void stopGame() {
+		gameOn = false;
+	}
+	
+	
+	/*
+	 * Stops the game by the rules, and tells the listener.
+	 */
+	private void endGame() {
+		gameOn = false;
+		if (listener!=null) listener.gameOver();
+	}
+	
+	
+	public boolean isGameOn() {
+		return gameOn;
+	}
+	
+	public Board getBoard() {
+		return board;
+	}
+	
+	public Piece[] getPieces() {
+		return pieces;
+	}
+	
+	public Random getRandom() {
+		return random;
+	}
+	
+	public Piece getCurrentPiece() {
+		return currentPiece;
+	}
+	
+	public int getCurrentX() {
+		return currentX;
+	}
+	
+	public int getCurrentY() {
+		return currentY;
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	public int getScore() {
+		return score;
+	}
+	
+	public int getLinesCleared() {
+		return linesCleared;
+	}
+	
+	public int getTopSpace() {
+		return topSpace;
+	}
+	
+	
+	/**
+	 Given a piece, tries to install that piece
+	 into the board and set it to be the current piece.
+	 If the placement is not possible, then the placement
+	 is undone, and the board is not changed. The board
+	 should be in the committed state when this is called.
+	 Returns the same error code as Board.place().
+	*/
+	public int setCurrent(Piece piece, int x, int y) {
+		int result = board.place(piece, x, y);
+		
+		if (result <= Board.PLACE_ROW_FILLED) { // SUCESS
+			Piece oldPiece = currentPiece;
+			int oldX = currentX;
+			int oldY = currentY;
+			currentPiece = piece;
+			currentX = x;
+			currentY = y;
+			if (listener!=null) listener.pieceMoved(oldPiece, oldX, oldY, piece, x, y);
+		}
+		else {
+			board.undo();
+		}
+		
+		return(result);
+	}
+	
+	
+	/**
+	 Selects the next piece to use using the random generator
+	 set in startGame(). Override to choose pieces some other way.
+	*/
+	public Piece pickNextPiece() {
+		int pieceNum;
+		
+		pieceNum = (int) (pieces.length * random.nextDouble());
+		
+		Piece piece	 = pieces[pieceNum];
+		
+		return(piece);
+	}
+	
+	
+	/**
+	 Tries to add a new random piece at the top of the board.
+	 Ends the game if it's not possible.
+	*/
+	public void addNewPiece() {
+		count++;
+		score++;
+		
+		if (pieceLimit > 0 && count == pieceLimit+1) {
+			endGame();
+			return;
+		}
+		
+		// commit things the way they are
+		board.commit();
+		currentPiece = null;
+		
+		Piece piece = pickNextPiece();
+		
+		// Center it up at the top
+		int px = (board.getWidth() - piece.getWidth())/2;
+		int py = board.getHeight() - piece.getHeight();
+		
+		// add the new piece to be in play
+		int result = setCurrent(piece, px, py);
+		
+		// This probably never happens, since
+		// the blocks at the top allow space
+		// for new pieces to at least be added.
+		if (result>Board.PLACE_ROW_FILLED) {
+			endGame();
+		}
+		
+		if (listener!=null) listener.pieceAdded();
+	}
+	
+	
+	/**
+	 Figures a new position for the current piece
+	 based on the given verb (LEFT, RIGHT, ...).
+	 The board should be in the committed state --
+	 i.e. the piece should not be in the board at the moment.
+	 This is necessary so dropHeight() may be called without
+	 the piece "hitting itself" on the way down.
+	 
+	 Sets newX, newY, and newPiece to hold
+	 what it thinks the new piece position should be.
+	*/
+	public void computeNewPosition(int verb) {
+		// As a starting point, the new position is the same as the old
+		newPiece = currentPiece;
+		newX = currentX;
+		newY = currentY;
+		
+		// Make changes based on the verb
+		switch (verb) {
+			case LEFT: newX--; break;
+			
+			case RIGHT: newX++; break;
+			
+			case ROTATE:
+				newPiece = newPiece.fastRotation();
+				newX = rotatedX(currentPiece, newPiece, newX);
+				newY = rotatedY(currentPiece, newPiece, newY);
+				break;
+				
+			case DOWN: newY--; break;
+			
+			case DROP:
+			 newY = board.dropHeight(newPiece, newX);
+			 
+			 // trick: avoid the case where the drop would cause
+			 // the piece to appear to move up
+			 if (newY > currentY) {
+				 newY = currentY;
+			 }
+			 break;
+			 
+			default:
+				 throw new RuntimeException("Bad verb");
+		}
+	}
+	
+	
+	/**
+	 Returns the x a piece moves to when it rotates from
+	 piece to rotated at x.
+	 Tricky: make the piece appear to rotate about its center --
+	 can't just leave it at the same lower-left origin as the
+	 previous piece.
+	*/
+	public static int rotatedX(Piece piece, Piece rotated, int x) {
+		return x + (piece.getWidth() - rotated.getWidth())/2;
+	}
+	
+	
+	/**
+	 Returns the y a piece moves to when it rotates from
+	 piece to rotated at y -- see rotatedX().
+	*/
+	public static int rotatedY(Piece piece, Piece rotated, int y) {
+		return y + (piece.getHeight() - rotated.getHeight())/2;
+	}
+	
+	
+	/**
+	 Called to change the position of the current piece.
+	 Each key press calls this once with the verbs
+	 LEFT RIGHT ROTATE DROP for the user moves,
+	 and the timer calls it with the verb DOWN to move
+	 the piece down one square.
+	 
+	 Before this is called, the piece is at some location in the board.
+	 This advances the piece to be at its next location.
+	 Returns true if the move worked.
+	*/
+	public boolean tick(int verb) {
+		if (!gameOn) return false;
+		
+		if (currentPiece != null) {
+			board.undo();	// remove the piece from its old position
+		}
+		
+		// Sets the newXXX ivars
+		computeNewPosition(verb);
+		
+		// try out the new position -- probe it first so a
+		// move that doesn't work never touches the board
+		int result = board.canPlace(newPiece, newX, newY);
+		if (result <= Board.PLACE_ROW_FILLED) {
+			result = setCurrent(newPiece, newX, newY);
+		}
+		
+		// if row clearing is going to happen, say so
+		// so the filled row can be shown
+		if (result ==  Board.PLACE_ROW_FILLED && listener!=null) {
+			listener.rowsFilled();
+		}
+		
+		boolean failed = (result >= Board.PLACE_OUT_BOUNDS);
+		
+		// if it didn't work, put it back the way it was
+		if (failed && currentPiece != null) {
+			board.place(currentPiece, currentX, currentY);
+			if (listener!=null) {
+				listener.pieceMoved(currentPiece, currentX, currentY, currentPiece, currentX, currentY);
+			}
+		}
+		
+		/*
+		 How to detect when a piece has landed:
+		 if this move hits something on its DOWN verb,
+		 and the previous verb was also DOWN (i.e. the player was not
+		 still moving it),	then the previous position must be the correct
+		 "landed" position, so we're done with the falling of this piece.
+		*/
+		if (failed && verb==DOWN && !moved) {	// it's landed
+			land();
+		}
+		
+		// Note if the player made a successful non-DOWN move --
+		// used to detect if the piece has landed on the next tick()
+		moved = (!failed && verb!=DOWN);
+		return !failed;
+	}
+	
+	
+	/*
+	 * The current piece has landed where it is: clears rows,
+	 * scores them, and either ends the game or adds a new piece.
+	 */
+	private void land() {
+		int cleared = board.clearRows();
+		if (cleared > 0) {
+			// score goes up by 5, 10, 20, 40 for row clearing
+			switch (cleared) {
+				case 1: score += 5;	 break;
+				case 2: score += 10;  break;
+				case 3: score += 20;  break;
+				case 4: score += 40;  break;
+				default: score += 50;  // could happen with non-standard pieces
+			}
+			linesCleared += cleared;
+			if (listener!=null) listener.rowsCleared(cleared);
+		}
+		
+		// if the board is too tall, we've lost
+		if (board.getMaxHeight() > board.getHeight() - topSpace) {
+			endGame();
+		}
+		// Otherwise add a new piece and keep playing
+		else {
+			addNewPiece();
+		}
+	}
+	
+	
+	/**
+	 Plays the current piece straight to its final position in
+	 one step, as a bot would: the given piece should be a rotation
+	 of the current piece, as from Brain.bestMove(). It lands at
+	 (x, y) at once, and the next piece comes in. Does not check
+	 that the piece could get there by a series of ticks.
+	 Returns false, and changes nothing, if the piece doesn't
+	 fit at (x, y).
+	*/
+	public boolean playMove(Piece piece, int x, int y) {
+		if (!gameOn || currentPiece==null) return false;
+		
+		board.undo();	// remove the piece from its old position
+		if (!board.fits(piece, x, y)) {
+			board.place(currentPiece, currentX, currentY);
+			return false;
+		}
+		
+		setCurrent(piece, x, y);
+		moved = false;
+		land();
+		return true;
+	}
+	
+	
+	/**
+	 Asks the brain for the best play of the current piece and
+	 plays it with playMove(). Ends the game if the brain finds
+	 no play. Returns the brain's move, or null.
+	*/
+	public Brain.Move playBrainMove(Brain brain, Brain.Move move) {
+		if (!gameOn || currentPiece==null) return null;
+		
+		board.undo();	// the brain needs the board without the current piece
+		move = brain.bestMove(board, currentPiece, board.getHeight() - topSpace, move);
+		board.place(currentPiece, currentX, currentY);
+		
+		if (move==null || !playMove(move.piece, move.x, move.y)) {
+			endGame();
+			return null;
+		}
+		return move;
+	}
+	
+	
+	/**
+	 Same as playBrainMove(brain, null).
+	*/
+	public Brain.Move playBrainMove(Brain brain) {
+		return playBrainMove(brain, null);
+	}
+}
@@ -0,0 +1,157 @@
+// TranspositionTable.java
+package tetris;
+
+import java.util.Arrays;
+
+/**
+ A fixed-size table from board hashes (see Board.getHash()) to
+ search results, so a search can skip positions it has already
+ rated -- e.g. the same board reached by a different move order.
+ 
+ <p>
+ Each entry holds a score, the depth it was searched to, and
+ a 16-bit aux value that the caller can use to pack a move.
+ The table never grows; entries are replaced by depth.
+ 
+ Typical client code looks like...
+ <pre>
+ TranspositionTable table = new TranspositionTable(16);	// 2^16 buckets
+ long entry = table.probe(board.getHash());
+ if (entry!=TranspositionTable.MISS && TranspositionTable.depth(entry)>=depth) {
+ 	return TranspositionTable.score(entry);
+ }
+ ...
+ table.store(board.getHash(), score, depth, 0);
+ </pre>
+*/
+/*
+ Implementation: open addressing over one long[]. Each bucket is two
+ slots of two longs -- (key ^ data, data). The first slot keeps the deepest
+ result and the second always takes the newest. Storing the key XOR'd
+ with the data is the lockless hashing trick: threads read and write
+ without locks, and a slot torn by a racing write fails the key check
+ on probe(), so it reads as a miss instead of a wrong answer.
+ Data layout, high to low: score as float bits (32), aux (16),
+ depth (15), and a used bit so an empty slot is never a hit.
+*/
+public class TranspositionTable {
+	
+	/**
+	 Returned by probe() when the key is not in the table.
+	*/
+	public static final long MISS = 0;
+	
+	public static final int MAX_DEPTH = 0x7FFF;
+	
+	private static final int SLOT = 2;			// longs per slot
+	private static final int BUCKET = 2*SLOT;	// longs per bucket
+	
+	private final long[] table;
+	private final int bucketMask;
+	
+	
+	/**
+	 Creates an empty table with 2^sizeBits buckets of two entries each.
+	 Each bucket takes 32 bytes.
+	*/
+	public TranspositionTable(int sizeBits) {
+		if (sizeBits<1 || sizeBits>26) throw new RuntimeException("Bad table size " + sizeBits);
+		table = new long[BUCKET << sizeBits];
+		bucketMask = (1 << sizeBits) - 1;
+	}
+	
+	
+	/**
+	 Returns the number of entries the table can hold.
+	*/
+	public int capacity() {
+		return table.length / SLOT;
+	}
+	
+	
+	/**
+	 Returns the entry stored for the key, or MISS.
+	 Decode it with score(), depth() and aux().
+	*/
+	public long probe(long key) {
+		int i = index(key);
+		
+		long data = table[i+1];
+		if (data!=MISS && (table[i] ^ data)==key) return data;
+		
+		data = table[i+SLOT+1];
+		if (data!=MISS && (table[i+SLOT] ^ data)==key) return data;
+		
+		return MISS;
+	}
+	
+	
+	/**
+	 Stores a result for the key. The result goes in the
+	 depth-preferred slot if it was searched at least as deep
+	 as what is there (or is for the same key), and in the
+	 always-replace slot otherwise.
+	*/
+	public void store(long key, double score, int depth, int aux) {
+		if (depth<0 || depth>MAX_DEPTH) throw new RuntimeException("Bad depth " + depth);
+		
+		long data = ((long)Float.floatToRawIntBits((float)score) << 32)
+				| ((long)(aux & 0xFFFF) << 16)
+				| ((long)depth << 1)
+				| 1L;
+		
+		int i = index(key);
+		long old = table[i+1];
+		boolean sameKey = (table[i] ^ old)==key;
+		if (old==MISS || sameKey || depth>=depth(old)) {
+			table[i+1] = data;
+			table[i] = key ^ data;
+		}
+		else {
+			table[i+SLOT+1] = data;
+			table[i+SLOT] = key ^ data;
+		}
+	}
+	
+	
+	/**
+	 Empties the table.
+	*/
+	public void clear() {
+		Arrays.fill(table, 0);
+	}
+	
+	
+	/**
+	 Decodes the score of an entry returned by probe().
+	 Scores are kept as floats, so they are rounded to about 7 digits.
+	*/
+	public static double score(long entry) {
+		return Float.intBitsToFloat((int)(entry >>> 32));
+	}
+	
+	
+	/**
+	 Decodes the depth of an entry returned by probe().
+	*/
+	public static int depth(long entry) {
+		return (int)(entry >>> 1) & MAX_DEPTH;
+	}
+	
+	
+	/**
+	 Decodes the aux value of an entry returned by probe().
+	*/
+	public static int aux(long entry) {
+		return (int)(entry >>> 16) & 0xFFFF;
+	}
+	
+	
+	/*
+	 * The first long of the key's bucket. The low bits of a
+	 * Zobrist hash are as good as any, so they are used directly.
+	 */
+	private int index(long key) {
+		return ((int)key & bucketMask) * BUCKET;
+	}
+}
@@ -0,0 +1,354 @@
+// WeightTuner.java
+
+package tetris;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ Tunes WeightedBrain's weights with the cross-entropy method.
+ Each generation draws a population of weight vectors from a normal
+ distribution, plays the same seeded games with each through
+ BrainSimulator.playGame(), and refits the distribution's mean and
+ standard deviation to the elite -- the candidates that cleared the
+ most lines on average.
+ A little extra noise is added to the deviation, shrinking over the
+ generations, so the search doesn't collapse early.
+
+ <p>
+ After every generation the state goes to a checkpoint file, and the
+ mean goes to a weights file for WeightedBrain. Started again with
+ the same checkpoint, the tuner picks up where it stopped.
+ From the command line:
+ <pre>
+ java tetris.WeightTuner [checkpoint] [weights out] [generations]
+ </pre>
+*/
+/*
+ Implementation: all population x games plays of a generation go on
+ one pool at once, so every core stays busy even with few games per
+ candidate. Every candidate in a generation plays the same seeds, so
+ they're compared on the same pieces; the seeds and the samples come
+ from Randoms seeded by the generation number, so a resumed run goes
+ on exactly as the first one would have.
+*/
+public class WeightTuner {
+
+    public static final int DEFAULT_POPULATION = 50;
+    public static final double DEFAULT_ELITE_FRACTION = 0.2;
+    public static final int DEFAULT_GAMES = 8;
+    public static final int DEFAULT_PIECE_LIMIT = 2000;
+    public static final int DEFAULT_GENERATIONS = 30;
+
+    // extra deviation added at generation g is NOISE/(g+1)
+    private static final double NOISE = 4;
+
+    private final File checkpoint;
+    private int population;
+    private int eliteCount;
+    private int games;
+    private int pieceLimit;
+    private int threads;
+    private long seed;
+
+    // the state saved in the checkpoint
+    private int generation;
+    private double[] mean;
+    private double[] stddev;
+    private double[] bestWeights;
+    private double bestFitness;
+
+
+    /**
+     Creates a tuner that checkpoints to the given file, resuming
+     from it if it exists, or else starting from DefaultBrain's weights.
+    */
+    public WeightTuner(File checkpoint) throws IOException {
+        this.checkpoint = checkpoint;
+        pieceLimit = DEFAULT_PIECE_LIMIT;
+        setPopulation(DEFAULT_POPULATION, DEFAULT_ELITE_FRACTION);
+        games = DEFAULT_GAMES;
+        threads = Runtime.getRuntime().availableProcessors();
+
+        if (checkpoint.exists()) {
+            load();
+        }
+        else {
+            generation = 0;
+            mean = WeightedBrain.getDefaultWeights();
+            stddev = new double[mean.length];
+            for (int i = 0; i<mean.length; i++) {
+                stddev[i] = Math.max(Math.abs(mean[i]), 10);
+            }
+            bestWeights = mean.clone();
+            bestFitness = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+
+    /**
+     Sets the candidates per generation and the fraction of them kept as the elite.
+    */
+    public void setPopulation(int population, double eliteFraction) {
+        if (population < 2) throw new RuntimeException("Bad population " + population);
+        this.population = population;
+        eliteCount = Math.max(1, (int)Math.round(population * eliteFraction));
+    }
+
+    /**
+     Sets the games each candidate plays per generation, and the piece limit for each.
+    */
+    public void setGames(int games, int pieceLimit) {
+        if (games < 1) throw new RuntimeException("Bad game count " + games);
+        this.games = games;
+        this.pieceLimit = pieceLimit;
+    }
+
+    /**
+     Sets the number of worker threads.
+    */
+    public void setThreads(int threads) {
+        if (threads < 1) throw new RuntimeException("Bad thread count " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     Sets the seed the games and samples of every generation derive from.
+     It is saved in the checkpoint, so a resumed run needn't set it again.
+    */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     Returns a copy of the current mean -- the tuner's best guess.
+    */
+    public double[] getMean() {
+        return mean.clone();
+    }
+
+    /**
+     Returns a copy of the best single candidate seen so far.
+    */
+    public double[] getBestWeights() {
+        return bestWeights.clone();
+    }
+
+    /**
+     Returns the mean lines cleared by the best single candidate
+     seen so far, on its generation's games.
+    */
+    public double getBestFitness() {
+        return bestFitness;
+    }
+
+
+    /**
+     Runs generations until the given total is reached, checkpointing
+     after each one and writing the mean to the weights file, if not null.
+    */
+    public void run(int generations, File weightsFile) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            while (generation < generations) {
+                step(executor);
+                save();
+                if (weightsFile!=null) {
+                    WeightedBrain.saveWeights(weightsFile, mean, "WeightTuner generation " + generation);
+                }
+                System.out.println(String.format("generation %d best %.1f mean %s", generation, bestFitness, Arrays.toString(mean)));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /*
+     * Samples, rates and refits one generation.
+     */
+    private void step(ExecutorService executor) {
+        Random random = new Random(seed * 1000003 + generation);
+        final int dims = mean.length;
+
+        double[][] candidates = new double[population][dims];
+        for (int c = 0; c<population; c++) {
+            for (int i = 0; i<dims; i++) {
+                candidates[c][i] = mean[i] + stddev[i]*random.nextGaussian();
+            }
+        }
+
+        long firstSeed = random.nextLong();
+        final double[] fitness = rate(executor, candidates, firstSeed);
+
+        // sort the candidates best first
+        Integer[] order = new Integer[population];
+        for (int c = 0; c<population; c++) order[c] = c;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(fitness[b], fitness[a]);
+            }
+        });
+
+        if (fitness[order[0]] > bestFitness) {
+            bestFitness = fitness[order[0]];
+            bestWeights = candidates[order[0]].clone();
+        }
+
+        // refit to the elite
+        double noise = NOISE/(generation+1);
+        for (int i = 0; i<dims; i++) {
+            double sum = 0;
+            for (int e = 0; e<eliteCount; e++) sum += candidates[order[e]][i];
+            double m = sum/eliteCount;
+
+            double squares = 0;
+            for (int e = 0; e<eliteCount; e++) {
+                double d = candidates[order[e]][i] - m;
+                squares += d*d;
+            }
+            mean[i] = m;
+            stddev[i] = Math.sqrt(squares/eliteCount) + noise;
+        }
+
+        generation++;
+    }
+
+
+    /*
+     * Plays every candidate on the games firstSeed, firstSeed+1, ...
+     * and returns the mean lines cleared of each.
+     */
+    private double[] rate(ExecutorService executor, double[][] candidates, long firstSeed) {
+        final int[][] lines = new int[candidates.length][games];
+        List<Future<?>> futures = new ArrayList<Future<?>>(candidates.length * games);
+
+        for (int c = 0; c<candidates.length; c++) {
+            for (int g = 0; g<games; g++) {
+                final int candidate = c;
+                final int game = g;
+                final double[] weights = candidates[c];
+                final long gameSeed = firstSeed + g;
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        TetrisEngine engine = BrainSimulator.playGame(TetrisEngine.WIDTH, TetrisEngine.HEIGHT,
+                                Piece.getPieces(), pieceLimit, new WeightedBrain(weights), gameSeed);
+                        lines[candidate][game] = engine.getLinesCleared();
+                    }
+                }));
+            }
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("tuning interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("game failed", e.getCause());
+        }
+
+        double[] fitness = new double[candidates.length];
+        for (int c = 0; c<candidates.length; c++) {
+            double sum = 0;
+            for (int n : lines[c]) sum += n;
+            fitness[c] = sum/games;
+        }
+        return fitness;
+    }
+
+
+    /*
+     * Writes the state to the checkpoint file, by way of a temporary
+     * file so a crash mid-write leaves the old checkpoint intact.
+     */
+    private void save() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("seed", Long.toString(seed));
+        props.setProperty("generation", Integer.toString(generation));
+        props.setProperty("bestFitness", Double.toString(bestFitness));
+        WeightedBrain.putWeights(props, "mean.", mean);
+        WeightedBrain.putWeights(props, "stddev.", stddev);
+        WeightedBrain.putWeights(props, "best.", bestWeights);
+
+        File temp = new File(checkpoint.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            props.store(out, "WeightTuner checkpoint");
+        }
+        finally {
+            out.close();
+        }
+        if (!temp.renameTo(checkpoint)) {
+            // renameTo() won't replace a file on some platforms
+            checkpoint.delete();
+            if (!temp.renameTo(checkpoint)) throw new IOException("Could not write checkpoint " + checkpoint);
+        }
+    }
+
+
+    private void load() throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(checkpoint);
+        try {
+            props.load(in);
+        }
+        finally {
+            in.close();
+        }
+
+        try {
+            seed = Long.parseLong(props.getProperty("seed", "").trim());
+            generation = Integer.parseInt(props.getProperty("generation", "").trim());
+            bestFitness = Double.parseDouble(props.getProperty("bestFitness", "").trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Not a WeightTuner checkpoint: " + checkpoint);
+        }
+        mean = WeightedBrain.getWeights(props, "mean.");
+        stddev = WeightedBrain.getWeights(props, "stddev.");
+        bestWeights = WeightedBrain.getWeights(props, "best.");
+    }
+
+
+    /**
+     Tunes from the command line. Args, all optional: checkpoint file
+     (weights.checkpoint), weights file to write (weights.properties),
+     total generations (DEFAULT_GENERATIONS).
+    */
+    public static void main(String[] args) throws IOException {
+        File checkpoint = new File(args.length > 0 ? args[0] : "weights.checkpoint");
+        File weightsFile = new File(args.length > 1 ? args[1] : "weights.properties");
+        int generations = (args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_GENERATIONS);
+
+        WeightTuner tuner = new WeightTuner(checkpoint);
+        if (tuner.getGeneration() > 0) {
+            System.out.println("Resuming at generation " + tuner.getGeneration());
+        }
+        tuner.run(generations, weightsFile);
+        System.out.println("Best candidate " + Arrays.toString(tuner.getBestWeights()) + " cleared " + tuner.getBestFitness());
+    }
+}
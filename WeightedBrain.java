@@ -0,0 +1,206 @@
+// WeightedBrain.java
+
+package tetris;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ A DefaultBrain whose rateBoard() is a weighted sum of board features,
+ with the weights given as a vector rather than written into the code.
+ The features are the ones the Board keeps up to date as pieces go in,
+ so rating stays O(1). With the default weights it rates every board
+ exactly as DefaultBrain does; WeightTuner searches for better ones.
+
+ <p>
+ Weights files are java.util.Properties files with one line per
+ feature, e.g. "holes=1.25"; features left out get weight 0.
+ The no-argument constructor loads the file named by the system
+ property tetris.brain.weights, if it is set, so a tuned brain can
+ be picked at startup without code changes.
+*/
+public class WeightedBrain extends DefaultBrain {
+
+    /**
+     The names of the features, in the order of the weight vector.
+    */
+    public static final String[] FEATURES = {
+        "maxHeight",    // the tallest column
+        "avgHeight",    // the mean column height
+        "holes",        // empty cells below the top of their column
+        "bumpiness",    // sum of height differences of neighboring columns
+        "wells",        // sum of well depths, see Board.getWellSum()
+    };
+
+    public static final int MAX_HEIGHT = 0;
+    public static final int AVG_HEIGHT = 1;
+    public static final int HOLES = 2;
+    public static final int BUMPINESS = 3;
+    public static final int WELLS = 4;
+
+    /**
+     DefaultBrain's made up weights.
+    */
+    private static final double[] DEFAULT_WEIGHTS = { 8, 40, 1.25, 0, 0 };
+
+    /**
+     The system property naming the weights file for WeightedBrain().
+    */
+    public static final String WEIGHTS_PROPERTY = "tetris.brain.weights";
+
+    private final double[] weights;
+
+
+    /**
+     Creates a brain with the weights from the file named by the
+     tetris.brain.weights property, or the default weights if it
+     is not set.
+     Throws a RuntimeException if the file can't be read.
+    */
+    public WeightedBrain() {
+        this(defaultWeights());
+    }
+
+
+    /**
+     Creates a brain with a copy of the given weights, one per feature.
+    */
+    public WeightedBrain(double[] weights) {
+        if (weights.length!=FEATURES.length) {
+            throw new RuntimeException("Need " + FEATURES.length + " weights, not " + weights.length);
+        }
+        this.weights = weights.clone();
+    }
+
+
+    /**
+     Creates a brain with the weights from the given file.
+    */
+    public WeightedBrain(File file) throws IOException {
+        this(loadWeights(file));
+    }
+
+
+    /**
+     Returns a copy of the weights.
+    */
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+
+    /**
+     Returns a copy of DefaultBrain's weights.
+    */
+    public static double[] getDefaultWeights() {
+        return DEFAULT_WEIGHTS.clone();
+    }
+
+
+    private static double[] defaultWeights() {
+        String name = System.getProperty(WEIGHTS_PROPERTY);
+        if (name==null) return DEFAULT_WEIGHTS;
+
+        try {
+            return loadWeights(new File(name));
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not load weights " + name, e);
+        }
+    }
+
+
+    /**
+     Stores the features of the board in the given array,
+     in FEATURES order.
+    */
+    public static void features(Board board, double[] features) {
+        features[MAX_HEIGHT] = board.getMaxHeight();
+        features[AVG_HEIGHT] = ((double)board.getAggregateHeight())/board.getWidth();
+        features[HOLES] = board.getHoles();
+        features[BUMPINESS] = board.getBumpiness();
+        features[WELLS] = board.getWellSum();
+    }
+
+
+    /**
+     Rates the board as the weighted sum of its features --
+     larger numbers for worse boards.
+    */
+    @Override
+    public double rateBoard(Board board) {
+        // spelled out rather than via features(), to skip the array
+        return weights[MAX_HEIGHT]*board.getMaxHeight()
+            + weights[AVG_HEIGHT]*(((double)board.getAggregateHeight())/board.getWidth())
+            + weights[HOLES]*board.getHoles()
+            + weights[BUMPINESS]*board.getBumpiness()
+            + weights[WELLS]*board.getWellSum();
+    }
+
+
+    /**
+     Reads a weights file. Features missing from the file get weight 0.
+    */
+    public static double[] loadWeights(File file) throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        }
+        finally {
+            in.close();
+        }
+        return getWeights(props, "");
+    }
+
+
+    /**
+     Writes a weights file that loadWeights() reads back exactly.
+    */
+    public static void saveWeights(File file, double[] weights, String comment) throws IOException {
+        Properties props = new Properties();
+        putWeights(props, "", weights);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            props.store(out, comment);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    /*
+     * Reads the weights stored under prefix+feature name.
+     */
+    static double[] getWeights(Properties props, String prefix) throws IOException {
+        double[] weights = new double[FEATURES.length];
+        for (int i = 0; i<FEATURES.length; i++) {
+            String value = props.getProperty(prefix + FEATURES[i]);
+            if (value==null) continue;
+            try {
+                weights[i] = Double.parseDouble(value.trim());
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Bad weight for " + prefix + FEATURES[i] + ": " + value);
+            }
+        }
+        return weights;
+    }
+
+
+    /*
+     * Stores the weights under prefix+feature name. Double.toString()
+     * round-trips exactly through parseDouble().
+     */
+    static void putWeights(Properties props, String prefix, double[] weights) {
+        for (int i = 0; i<FEATURES.length; i++) {
+            props.setProperty(prefix + FEATURES[i], Double.toString(weights[i]));
+        }
+    }
+}